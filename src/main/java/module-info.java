@@ -1,6 +1,7 @@
 module org.zakariafarih.copyspider {
     requires javafx.controls;
     requires javafx.fxml;
+    requires jdk.httpserver;
 
 
     opens org.zakariafarih.copyspider to javafx.fxml;
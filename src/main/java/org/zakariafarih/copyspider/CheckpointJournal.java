@@ -0,0 +1,202 @@
+package org.zakariafarih.copyspider;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Checkpoint journal written next to the output ({@code combined.txt.journal}) while a combination runs.
+ * It records every completed file section and, periodically, a checkpoint offset up to which the
+ * output is known to be complete. A crashed or cancelled run is resumed by truncating the output
+ * to the last checkpoint and skipping the files recorded before it.
+ *
+ * <p>Lines are {@code F<TAB>offset<TAB>length<TAB>path} for a completed file and {@code C<TAB>offset}
+ * for a checkpoint. File lines after the last checkpoint are ignored when the journal is read.
+ * The journal is forced to disk at every checkpoint, so a checkpoint survives a power loss.
+ */
+public class CheckpointJournal implements Closeable {
+
+    public static final String SUFFIX = ".journal";
+    private static final String HEADER = "# CopySpider checkpoint journal v1";
+    private static final String SETTINGS_PREFIX = "# settings=";
+
+    // Checkpoint at least this often; each checkpoint costs a flush and a sync of the output and the journal
+    private static final long CHECKPOINT_INTERVAL_BYTES = 4L * 1024 * 1024;
+
+    private final Path journalFile;
+    private final FileChannel channel;
+    private final BufferedWriter writer;
+    private final List<SectionIndex.Section> pending = new ArrayList<>();
+    private long lastCheckpoint;
+
+    /**
+     * Starts a new journal, carrying over the completed sections of a resumed run if there is one.
+     */
+    public CheckpointJournal(Path journalFile, String settings, State resumed) throws IOException {
+        this.journalFile = journalFile;
+
+        // Rewrite rather than append so file lines left after the old last checkpoint are dropped
+        Path tempFile = journalFile.resolveSibling(journalFile.getFileName().toString() + ".tmp");
+        try (FileChannel tempChannel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            BufferedWriter out = newWriter(tempChannel);
+            out.write(HEADER + "\n");
+            out.write(SETTINGS_PREFIX + SectionIndex.encodePath(settings) + "\n");
+            if (resumed != null) {
+                for (SectionIndex.Section section : resumed.getCompletedSections()) {
+                    writeFileLine(out, section);
+                }
+                out.write("C\t" + resumed.getCheckpointOffset() + "\n");
+                lastCheckpoint = resumed.getCheckpointOffset();
+            }
+            out.flush();
+            tempChannel.force(false);
+        }
+        Files.move(tempFile, journalFile, StandardCopyOption.REPLACE_EXISTING);
+
+        this.channel = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.writer = newWriter(channel);
+    }
+
+    private static BufferedWriter newWriter(FileChannel channel) {
+        return new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the journal path for a combined output file.
+     */
+    public static Path journalPathFor(Path outputFile) {
+        return outputFile.resolveSibling(outputFile.getFileName().toString() + SUFFIX);
+    }
+
+    /**
+     * Notes a file whose section has been fully written; it becomes durable at the next checkpoint.
+     */
+    public void fileCompleted(String path, long offset, long length) {
+        pending.add(new SectionIndex.Section(path, offset, length));
+    }
+
+    /**
+     * Checks if enough output has been written since the last checkpoint to take another.
+     */
+    public boolean isCheckpointDue(long outputPosition) {
+        return outputPosition - lastCheckpoint >= CHECKPOINT_INTERVAL_BYTES;
+    }
+
+    /**
+     * Records a checkpoint and forces it to disk. The caller must have synced the output up to
+     * {@code outputOffset} first (see {@link CombinedWriter#sync()}), or the checkpoint could outlive
+     * the data it vouches for.
+     */
+    public void checkpoint(long outputOffset) throws IOException {
+        for (SectionIndex.Section section : pending) {
+            writeFileLine(writer, section);
+        }
+        writer.write("C\t" + outputOffset + "\n");
+        writer.flush();
+        channel.force(false);
+        pending.clear();
+        lastCheckpoint = outputOffset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * Closes and removes the journal once the run has completed.
+     */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(journalFile);
+    }
+
+    /**
+     * Reads the state recorded up to the last checkpoint of a journal.
+     */
+    public static State read(Path journalFile) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Not a CopySpider checkpoint journal: " + journalFile);
+            }
+            String settingsLine = reader.readLine();
+            if (settingsLine == null || !settingsLine.startsWith(SETTINGS_PREFIX)) {
+                throw new IOException("Checkpoint journal has no settings: " + journalFile);
+            }
+            String settings = SectionIndex.decodePath(settingsLine.substring(SETTINGS_PREFIX.length()));
+
+            // A last line without its newline was torn by a crash and is not trusted
+            boolean endsWithNewline = endsWithNewline(journalFile);
+            List<SectionIndex.Section> completed = new ArrayList<>();
+            List<SectionIndex.Section> uncheckpointed = new ArrayList<>();
+            long checkpointOffset = 0;
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                if (next == null && !endsWithNewline) {
+                    break;
+                }
+                String[] fields = line.split("\t", 4);
+                try {
+                    if (fields[0].equals("F") && fields.length == 4) {
+                        uncheckpointed.add(new SectionIndex.Section(SectionIndex.decodePath(fields[3]),
+                                Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+                    } else if (fields[0].equals("C") && fields.length == 2) {
+                        checkpointOffset = Long.parseLong(fields[1]);
+                        completed.addAll(uncheckpointed);
+                        uncheckpointed.clear();
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed checkpoint journal line: " + line, e);
+                }
+                line = next;
+            }
+            return new State(settings, checkpointOffset, completed);
+        }
+    }
+
+    private static boolean endsWithNewline(Path file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+            if (raf.length() == 0) {
+                return true;
+            }
+            raf.seek(raf.length() - 1);
+            return raf.read() == '\n';
+        }
+    }
+
+    private static void writeFileLine(Writer out, SectionIndex.Section section) throws IOException {
+        out.write("F\t" + section.getOffset() + "\t" + section.getLength() + "\t" + SectionIndex.encodePath(section.getPath()) + "\n");
+    }
+
+    /**
+     * The resumable state of an interrupted run.
+     */
+    public static class State {
+        private final String settings;
+        private final long checkpointOffset;
+        private final List<SectionIndex.Section> completedSections;
+
+        public State(String settings, long checkpointOffset, List<SectionIndex.Section> completedSections) {
+            this.settings = settings;
+            this.checkpointOffset = checkpointOffset;
+            this.completedSections = completedSections;
+        }
+
+        public String getSettings() {
+            return settings;
+        }
+
+        public long getCheckpointOffset() {
+            return checkpointOffset;
+        }
+
+        public List<SectionIndex.Section> getCompletedSections() {
+            return completedSections;
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package org.zakariafarih.copyspider;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Resident combine service exposed over a loopback HTTP API. Keeping the JVM alive between
+ * requests keeps the pipeline JIT-warm and lets the directory cache survive from one job to the next.
+ *
+ * <p>Endpoints:
+ * <ul>
+ *     <li>{@code POST /combine?root=...&root=...&output=...[&output=...][&base=...][&ext=.java,.txt][&depth=5][&encoding=UTF-8][&index=true][&resume=true][&locality=true][&maxLineLength=0][&format=plain|jsonl|markdown|length-prefixed]}</li>
+ *     <li>{@code GET /status}</li>
+ *     <li>{@code POST /shutdown}</li>
+ * </ul>
+ *
+ * <p>With several {@code output} parameters the roots are walked and read once for all of them.
+ * {@code base}, {@code ext}, {@code encoding} and {@code format} apply to every output unless
+ * overridden for one by its position, e.g. {@code ext.0=.java&format.1=jsonl}.
+ *
+ * <p>Every request must carry the token the daemon writes on start to a file only the user can read
+ * (see {@link #tokenPathFor(int)}) in the {@value #TOKEN_HEADER} header. Requests with an
+ * {@code Origin} header or a non-loopback {@code Host} are refused, so web pages cannot reach the
+ * API through cross-site requests or DNS rebinding.
+ */
+public class CombineDaemon {
+
+    public static final int DEFAULT_PORT = 7878;
+    public static final String TOKEN_HEADER = "X-CopySpider-Token";
+    // Directory listings kept between jobs; the least recently used are dropped beyond this
+    private static final int CACHED_DIRECTORIES = 100_000;
+    private static final Set<String> LOOPBACK_HOSTS = new HashSet<>(Arrays.asList("127.0.0.1", "localhost", "[::1]"));
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor jobExecutor;
+    private final ExecutorService requestExecutor;
+    private final DirectoryCache directoryCache = new DirectoryCache(CACHED_DIRECTORIES);
+    private final Path tokenFile;
+    private final byte[] token;
+    // Output files of the running and queued jobs, so two jobs never write the same file
+    private final Set<Path> activeOutputs = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong completedJobs = new AtomicLong();
+    private final AtomicLong failedJobs = new AtomicLong();
+    private final AtomicLong rejectedJobs = new AtomicLong();
+
+    /**
+     * Creates a daemon bound to the loopback interface. At most {@code workers} jobs run at once and
+     * at most {@code queueCapacity} more wait; anything beyond that is rejected with 503.
+     */
+    public CombineDaemon(int port, int workers, int queueCapacity) throws IOException {
+        jobExecutor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), namedThreads("combine-job"),
+                new ThreadPoolExecutor.AbortPolicy());
+        // One request thread per running or queued job, plus one spare to answer status and rejections
+        requestExecutor = Executors.newFixedThreadPool(workers + queueCapacity + 1, namedThreads("combine-http"));
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(requestExecutor);
+        server.createContext("/combine", authorized(this::handleCombine));
+        server.createContext("/status", authorized(this::handleStatus));
+        server.createContext("/shutdown", authorized(this::handleShutdown));
+
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        token = HexFormat.of().formatHex(random).getBytes(StandardCharsets.US_ASCII);
+        tokenFile = tokenPathFor(server.getAddress().getPort());
+    }
+
+    /**
+     * Returns the file the daemon listening on the given port writes its access token to.
+     */
+    public static Path tokenPathFor(int port) {
+        return Paths.get(System.getProperty("user.home"), ".copyspider", "daemon-" + port + ".token");
+    }
+
+    /**
+     * Parses daemon arguments ({@code [port] [workers] [queueCapacity]}) and runs until shut down.
+     */
+    public static void run(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        int queueCapacity = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        CombineDaemon daemon = new CombineDaemon(port, workers, queueCapacity);
+        daemon.start();
+        System.out.println("CopySpider daemon listening on http://" + daemon.server.getAddress().getHostString()
+                + ":" + daemon.server.getAddress().getPort() + " (" + workers + " workers, queue " + queueCapacity + ")");
+        System.out.println("Access token written to " + daemon.tokenFile);
+    }
+
+    public void start() throws IOException {
+        writeToken();
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        jobExecutor.shutdown();
+        requestExecutor.shutdown();
+        try {
+            Files.deleteIfExists(tokenFile);
+        } catch (IOException e) {
+            // A stale token is useless once this daemon is gone
+        }
+    }
+
+    /**
+     * Writes the access token to a file only the current user can read.
+     */
+    private void writeToken() throws IOException {
+        Files.createDirectories(tokenFile.getParent());
+        Files.deleteIfExists(tokenFile);
+        try {
+            Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system: restrict the file after creating it
+            File file = Files.createFile(tokenFile).toFile();
+            if (!file.setReadable(false, false) || !file.setReadable(true, true)
+                    || !file.setWritable(false, false) || !file.setWritable(true, true)) {
+                throw new IOException("Cannot restrict access to " + tokenFile);
+            }
+        }
+        Files.write(tokenFile, token);
+    }
+
+    /**
+     * Wraps a handler so it only runs for requests with the access token, no {@code Origin} header
+     * and a loopback {@code Host}.
+     */
+    private HttpHandler authorized(HttpHandler handler) {
+        return exchange -> {
+            String origin = exchange.getRequestHeaders().getFirst("Origin");
+            String host = exchange.getRequestHeaders().getFirst("Host");
+            String requestToken = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+            if (origin != null || host == null || !isLoopbackHost(host)) {
+                respond(exchange, 403, "Only local clients may use the daemon");
+            } else if (requestToken == null
+                    || !MessageDigest.isEqual(token, requestToken.getBytes(StandardCharsets.US_ASCII))) {
+                respond(exchange, 401, "Missing or wrong " + TOKEN_HEADER + " header, see " + tokenFile);
+            } else {
+                handler.handle(exchange);
+            }
+        };
+    }
+
+    /**
+     * Checks if a {@code Host} header names the loopback interface, so DNS-rebound names are refused.
+     */
+    private static boolean isLoopbackHost(String host) {
+        int portIndex = host.lastIndexOf(':');
+        String name = portIndex > host.lastIndexOf(']') ? host.substring(0, portIndex) : host;
+        return LOOPBACK_HOSTS.contains(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Runs a combine job on the bounded scheduler and waits for its result.
+     */
+    private void handleCombine(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "Use POST for /combine");
+            return;
+        }
+
+        Map<String, List<String>> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        List<Path> roots;
+        List<FileCombiner.OutputSpec> specs;
+        FileCombiner combiner;
+        try {
+            roots = params.getOrDefault("root", Collections.emptyList()).stream()
+                    .map(Paths::get)
+                    .collect(Collectors.toList());
+            if (roots.isEmpty()) {
+                throw new IllegalArgumentException("At least one root parameter is required");
+            }
+            requireParam(params, "output");
+            specs = new ArrayList<>();
+            List<String> outputFiles = params.get("output");
+            for (int i = 0; i < outputFiles.size(); i++) {
+                specs.add(createOutputSpec(params, Paths.get(outputFiles.get(i)), i));
+            }
+            combiner = createCombiner(params);
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, e.getMessage());
+            return;
+        }
+
+        List<Path> outputFiles = claimOutputs(specs);
+        if (outputFiles == null) {
+            respond(exchange, 409, "Another combine job is writing the same output file");
+            return;
+        }
+
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        Future<List<Integer>> job;
+        try {
+            job = jobExecutor.submit(() -> {
+                try {
+                    return combiner.combine(roots, specs, new FileCombiner.Listener() {
+                        @Override
+                        public void itemProcessed(int processedItems, int totalItems) {
+                        }
+
+                        @Override
+                        public void itemFailed(Path root, IOException e) {
+                            failures.add(root + ": " + e.getMessage());
+                        }
+                    });
+                } finally {
+                    activeOutputs.removeAll(outputFiles);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            activeOutputs.removeAll(outputFiles);
+            rejectedJobs.incrementAndGet();
+            respond(exchange, 503, "Too many combine jobs in progress, try again later");
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            List<Integer> filesWritten = job.get();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            completedJobs.incrementAndGet();
+
+            StringBuilder body = new StringBuilder();
+            if (specs.size() == 1) {
+                body.append("files=").append(filesWritten.get(0))
+                        .append(" bytes=").append(Files.size(specs.get(0).getOutputFile()))
+                        .append(" millis=").append(millis).append('\n');
+            } else {
+                for (int i = 0; i < specs.size(); i++) {
+                    Path outputFile = specs.get(i).getOutputFile();
+                    body.append("output=").append(outputFile)
+                            .append(" files=").append(filesWritten.get(i))
+                            .append(" bytes=").append(Files.size(outputFile)).append('\n');
+                }
+                body.append("millis=").append(millis).append('\n');
+            }
+            failures.forEach(failure -> body.append("failed: ").append(failure).append('\n'));
+            respond(exchange, failures.isEmpty() ? 200 : 207, body.toString());
+        } catch (ExecutionException e) {
+            failedJobs.incrementAndGet();
+            if (e.getCause() instanceof IllegalArgumentException) {
+                respond(exchange, 400, e.getCause().getMessage());
+                return;
+            }
+            respond(exchange, 500, "Failed to combine files: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.cancel(true);
+            respond(exchange, 500, "Interrupted while waiting for the combine job");
+        }
+    }
+
+    /**
+     * Reserves a job's output files, or returns null if another job is already writing one of them.
+     */
+    private synchronized List<Path> claimOutputs(List<FileCombiner.OutputSpec> specs) {
+        List<Path> outputFiles = new ArrayList<>();
+        for (FileCombiner.OutputSpec spec : specs) {
+            outputFiles.add(spec.getOutputFile().toAbsolutePath().normalize());
+        }
+        for (Path outputFile : outputFiles) {
+            if (activeOutputs.contains(outputFile)) {
+                return null;
+            }
+        }
+        activeOutputs.addAll(outputFiles);
+        return outputFiles;
+    }
+
+    /**
+     * Reports scheduler and cache state.
+     */
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        String body = "active=" + jobExecutor.getActiveCount() + '\n' +
+                "queued=" + jobExecutor.getQueue().size() + '\n' +
+                "completed=" + completedJobs.get() + '\n' +
+                "failed=" + failedJobs.get() + '\n' +
+                "rejected=" + rejectedJobs.get() + '\n' +
+                "cachedDirectories=" + directoryCache.size() + '\n';
+        respond(exchange, 200, body);
+    }
+
+    private void handleShutdown(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "Use POST for /shutdown");
+            return;
+        }
+        respond(exchange, 200, "Shutting down\n");
+        new Thread(this::stop).start();
+    }
+
+    /**
+     * Builds a combiner from request parameters, using the same defaults as the desktop UI.
+     */
+    private FileCombiner createCombiner(Map<String, List<String>> params) {
+        FileCombiner combiner = new FileCombiner();
+        combiner.setDirectoryCache(directoryCache);
+
+        String depth = firstParam(params, "depth");
+        if (depth != null) {
+            try {
+                combiner.setMaxDepth(Integer.parseInt(depth));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid depth: " + depth);
+            }
+        }
+
+        String maxLineLength = firstParam(params, "maxLineLength");
+        if (maxLineLength != null) {
+            try {
+                combiner.setMaxLineLength(Integer.parseInt(maxLineLength));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid maxLineLength: " + maxLineLength);
+            }
+        }
+        combiner.setWriteIndex(Boolean.parseBoolean(firstParam(params, "index")));
+        combiner.setResume(Boolean.parseBoolean(firstParam(params, "resume")));
+        combiner.setLocalityOrder(Boolean.parseBoolean(firstParam(params, "locality")));
+        return combiner;
+    }
+
+    /**
+     * Builds the settings of the output at the given position from request parameters.
+     */
+    private static FileCombiner.OutputSpec createOutputSpec(Map<String, List<String>> params, Path outputFile, int index) {
+        FileCombiner.OutputSpec spec = new FileCombiner.OutputSpec(outputFile);
+
+        String base = outputParam(params, "base", index);
+        if (base != null && !base.isEmpty()) {
+            File baseDirectory = new File(base);
+            if (!baseDirectory.isDirectory() || !baseDirectory.canRead()) {
+                throw new IllegalArgumentException("The base directory is invalid or unreadable: " + base);
+            }
+            spec.setUseAbsolutePath(false);
+            spec.setBaseDirectory(baseDirectory);
+        }
+
+        String ext = outputParam(params, "ext", index);
+        if (ext != null && !ext.trim().isEmpty()) {
+            Set<String> activeExtensions = Arrays.stream(ext.split(","))
+                    .map(e -> e.trim().toLowerCase())
+                    .filter(e -> e.startsWith("."))
+                    .collect(Collectors.toSet());
+            if (activeExtensions.isEmpty()) {
+                throw new IllegalArgumentException("Please enter valid file extensions starting with a dot.");
+            }
+            spec.setActiveExtensions(activeExtensions);
+        }
+
+        // An empty value keeps the default (UTF-8, plain text), as for base and ext
+        String encoding = outputParam(params, "encoding", index);
+        if (encoding != null && !encoding.trim().isEmpty()) {
+            try {
+                spec.setCharset(Charset.forName(encoding));
+            } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+            }
+        }
+        String format = outputParam(params, "format", index);
+        if (format != null && !format.trim().isEmpty()) {
+            try {
+                spec.setOutputFormat(OutputFormat.fromName(format));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unsupported format: " + format);
+            }
+        }
+        return spec;
+    }
+
+    private static Map<String, List<String>> parseQuery(String rawQuery) {
+        Map<String, List<String>> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int index = pair.indexOf('=');
+            String key = URLDecoder.decode(index >= 0 ? pair.substring(0, index) : pair, StandardCharsets.UTF_8);
+            String value = index >= 0 ? URLDecoder.decode(pair.substring(index + 1), StandardCharsets.UTF_8) : "";
+            params.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+        }
+        return params;
+    }
+
+    private static String firstParam(Map<String, List<String>> params, String name) {
+        List<String> values = params.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * Returns a parameter overridden for one output (e.g. {@code ext.1}), or else the shared one.
+     */
+    private static String outputParam(Map<String, List<String>> params, String name, int index) {
+        String value = firstParam(params, name + "." + index);
+        return value != null ? value : firstParam(params, name);
+    }
+
+    private static String requireParam(Map<String, List<String>> params, String name) {
+        String value = firstParam(params, name);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing required parameter: " + name);
+        }
+        return value;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicLong counter = new AtomicLong();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            return thread;
+        };
+    }
+}
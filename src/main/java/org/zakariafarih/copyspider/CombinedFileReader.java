@@ -0,0 +1,266 @@
+package org.zakariafarih.copyspider;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Random-access reader for a combined file that has a section index. Sections are located through
+ * the index in constant time and copied out through memory-mapped windows, so nothing is scanned
+ * and file contents never pass through the heap. JSON Lines sections are unescaped on the way out
+ * through a small streaming decoder instead.
+ */
+public class CombinedFileReader implements Closeable {
+
+    // Sections larger than this are mapped in several windows
+    private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final Path combinedFile;
+    private final SectionIndex index;
+    private final Map<String, SectionIndex.Section> sectionsByPath = new HashMap<>();
+    private final FileChannel channel;
+
+    /**
+     * Opens a combined file together with its sidecar section index.
+     */
+    public CombinedFileReader(Path combinedFile) throws IOException {
+        Path indexFile = SectionIndex.indexPathFor(combinedFile);
+        if (!Files.exists(indexFile)) {
+            throw new FileNotFoundException("No section index found for " + combinedFile + " (expected " + indexFile + ")");
+        }
+        this.combinedFile = combinedFile;
+        this.index = SectionIndex.read(indexFile);
+        for (SectionIndex.Section section : index.getSections()) {
+            sectionsByPath.put(section.getPath(), section);
+        }
+        this.channel = FileChannel.open(combinedFile, StandardOpenOption.READ);
+    }
+
+    public List<SectionIndex.Section> getSections() {
+        return index.getSections();
+    }
+
+    /**
+     * Returns the section for a path as written in the combined file's headers, or null.
+     */
+    public SectionIndex.Section findSection(String path) {
+        return sectionsByPath.get(path);
+    }
+
+    /**
+     * Copies one section's content to the target channel, as it was before formatting.
+     */
+    public void extract(SectionIndex.Section section, WritableByteChannel target) throws IOException {
+        long end = section.getOffset() + section.getLength();
+        if (end > channel.size()) {
+            throw new IOException("Section " + section.getPath() + " extends past the end of " + combinedFile);
+        }
+        if (index.getFormat() == OutputFormat.JSONL) {
+            extractJsonString(section, target);
+            return;
+        }
+        for (long position = section.getOffset(); position < end; position += MAP_WINDOW_SIZE) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW_SIZE, end - position));
+            while (window.hasRemaining()) {
+                target.write(window);
+            }
+        }
+    }
+
+    /**
+     * Decodes a JSON string body (without its quotes) from the combined file into the target channel.
+     */
+    private void extractJsonString(SectionIndex.Section section, WritableByteChannel target) throws IOException {
+        Charset charset = Charset.forName(index.getCharset());
+        Writer out = new BufferedWriter(Channels.newWriter(target, charset.newEncoder(), -1));
+        Reader in = new BufferedReader(new InputStreamReader(new SectionInputStream(section), charset.newDecoder()));
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c != '\\') {
+                out.write(c);
+                continue;
+            }
+            int escaped = in.read();
+            switch (escaped) {
+                case 'n':
+                    out.write('\n');
+                    break;
+                case 'r':
+                    out.write('\r');
+                    break;
+                case 't':
+                    out.write('\t');
+                    break;
+                case 'b':
+                    out.write('\b');
+                    break;
+                case 'f':
+                    out.write('\f');
+                    break;
+                case '"':
+                case '\\':
+                case '/':
+                    out.write(escaped);
+                    break;
+                case 'u':
+                    char[] hex = new char[4];
+                    for (int i = 0; i < hex.length; i++) {
+                        int digit = in.read();
+                        if (digit == -1) {
+                            throw new IOException("Truncated escape in section " + section.getPath());
+                        }
+                        hex[i] = (char) digit;
+                    }
+                    try {
+                        out.write(Integer.parseInt(new String(hex), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed escape in section " + section.getPath(), e);
+                    }
+                    break;
+                default:
+                    throw new IOException("Malformed escape in section " + section.getPath());
+            }
+        }
+        // Flushes without closing the target, which belongs to the caller
+        out.flush();
+    }
+
+    /**
+     * Extracts one section into a file, creating parent directories as needed.
+     */
+    public void extract(SectionIndex.Section section, Path targetFile) throws IOException {
+        Path parent = targetFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (FileChannel target = FileChannel.open(targetFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            extract(section, target);
+        }
+    }
+
+    /**
+     * Splits the combined file back into a tree of files under the target directory.
+     * Absolute header paths lose their root, and archive entries are placed under the archive's name.
+     */
+    public void split(Path targetDirectory) throws IOException {
+        Path root = targetDirectory.toAbsolutePath().normalize();
+        for (SectionIndex.Section section : index.getSections()) {
+            extract(section, resolveInside(root, section.getPath()));
+        }
+    }
+
+    /**
+     * Maps a header path onto a path inside the target directory.
+     */
+    static Path resolveInside(Path root, String headerPath) {
+        // "C:\dir\file" and "/dir/file" become "C/dir/file" and "dir/file"; "a.zip!/x" becomes "a.zip/x"
+        String relative = headerPath.replace('\\', '/').replace("!/", "/").replace(":", "");
+        while (relative.startsWith("/")) {
+            relative = relative.substring(1);
+        }
+        Path target = root.resolve(relative).normalize();
+        if (!target.startsWith(root) || target.equals(root)) {
+            throw new SecurityException("Section path " + headerPath + " escapes the target directory " + root);
+        }
+        return target;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads one section's bytes through memory-mapped windows.
+     */
+    private class SectionInputStream extends InputStream {
+        private final long end;
+        private long position;
+        private MappedByteBuffer window;
+
+        SectionInputStream(SectionIndex.Section section) {
+            this.position = section.getOffset();
+            this.end = section.getOffset() + section.getLength();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return nextWindow() ? window.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextWindow()) {
+                return -1;
+            }
+            int count = Math.min(len, window.remaining());
+            window.get(b, off, count);
+            return count;
+        }
+
+        private boolean nextWindow() throws IOException {
+            if (window != null && window.hasRemaining()) {
+                return true;
+            }
+            if (position >= end) {
+                return false;
+            }
+            long size = Math.min(MAP_WINDOW_SIZE, end - position);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            position += size;
+            return true;
+        }
+    }
+
+    /**
+     * Command-line entry point: {@code --list <combined>}, {@code --extract <combined> <path> [<target>]}
+     * or {@code --split <combined> <targetDirectory>}.
+     */
+    public static void run(String[] args) throws IOException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("Usage: --list <combined> | --extract <combined> <path> [<target>] | --split <combined> <dir>");
+        }
+        try (CombinedFileReader reader = new CombinedFileReader(Paths.get(args[1]))) {
+            switch (args[0]) {
+                case "--list":
+                    for (SectionIndex.Section section : reader.getSections()) {
+                        System.out.println(section.getOffset() + "\t" + section.getLength() + "\t" + section.getPath());
+                    }
+                    break;
+                case "--extract":
+                    if (args.length < 3) {
+                        throw new IllegalArgumentException("Usage: --extract <combined> <path> [<target>]");
+                    }
+                    SectionIndex.Section section = reader.findSection(args[2]);
+                    if (section == null) {
+                        throw new FileNotFoundException("No section for " + args[2] + " in " + args[1]);
+                    }
+                    if (args.length > 3) {
+                        reader.extract(section, Paths.get(args[3]));
+                    } else {
+                        WritableByteChannel out = Channels.newChannel(System.out);
+                        reader.extract(section, out);
+                        System.out.flush();
+                    }
+                    break;
+                case "--split":
+                    if (args.length < 3) {
+                        throw new IllegalArgumentException("Usage: --split <combined> <targetDirectory>");
+                    }
+                    reader.split(Paths.get(args[2]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[0]);
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package org.zakariafarih.copyspider;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.*;
+
+/**
+ * Buffered character writer for the combined output that encodes straight into a byte buffer
+ * in front of a file channel. Unlike a {@link BufferedWriter} it knows the exact byte offset of
+ * everything written so far, which is what section indexing needs, without flushing.
+ */
+public class CombinedWriter extends Writer {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final FileChannel channel;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    // Bytes already handed to the channel
+    private long drained;
+    // High surrogate held back until its low surrogate arrives in the next write
+    private char pendingHighSurrogate;
+    private boolean hasPendingHighSurrogate;
+    private boolean closed;
+
+    /**
+     * Creates (or truncates) the output file and writes to it in the given charset.
+     */
+    public CombinedWriter(Path file, Charset charset) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.encoder = charset.newEncoder();
+    }
+
+    /**
+     * Reopens an existing output file, truncating it to {@code offset} and continuing from there.
+     */
+    public CombinedWriter(Path file, Charset charset, long offset) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        this.encoder = charset.newEncoder();
+        try {
+            if (channel.size() < offset) {
+                throw new IOException("Output file " + file + " is shorter than the checkpoint at byte " + offset);
+            }
+            channel.truncate(offset);
+            channel.position(offset);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.drained = offset;
+    }
+
+    /**
+     * Returns the byte offset in the output file at which the next character will be written.
+     */
+    public long position() {
+        return drained + buffer.position();
+    }
+
+    /**
+     * Returns the number of bytes a string takes in the output charset.
+     */
+    public int encodedLength(String str) throws CharacterCodingException {
+        return toBytes(str).length;
+    }
+
+    /**
+     * Encodes a string the way it would appear in the middle of the output, for patching it in.
+     */
+    public byte[] toBytes(String str) throws CharacterCodingException {
+        // A fresh encoder may start with a byte order mark (UTF-16), which the output only has once at
+        // its start; encoding a leading character with and without the string cancels it out
+        int lead = encoder.charset().newEncoder().encode(CharBuffer.wrap("x")).remaining();
+        ByteBuffer bytes = encoder.charset().newEncoder().encode(CharBuffer.wrap("x" + str));
+        bytes.position(lead);
+        byte[] result = new byte[bytes.remaining()];
+        bytes.get(result);
+        return result;
+    }
+
+    /**
+     * Discards everything written from {@code offset} on, so writing continues there. Used to drop a
+     * section that could not be completed. The offset must not be before the last checkpoint.
+     */
+    public void truncate(long offset) throws IOException {
+        ensureOpen();
+        if (offset < 0 || offset > position()) {
+            throw new IOException("Cannot truncate to byte " + offset + " of " + position());
+        }
+        hasPendingHighSurrogate = false;
+        if (offset >= drained) {
+            buffer.position((int) (offset - drained));
+        } else {
+            buffer.clear();
+            channel.truncate(offset);
+            channel.position(offset);
+            drained = offset;
+        }
+    }
+
+    /**
+     * Overwrites bytes that were already written, either in the buffer or in the file itself.
+     * Used to fill in placeholders whose value is only known later, such as a length prefix.
+     */
+    public void patch(long offset, byte[] bytes) throws IOException {
+        ensureOpen();
+        if (offset < 0 || offset + bytes.length > position()) {
+            throw new IOException("Cannot patch bytes " + offset + "-" + (offset + bytes.length) + " before they are written");
+        }
+        // The part that has already reached the file
+        int onDisk = (int) Math.max(0, Math.min(bytes.length, drained - offset));
+        ByteBuffer head = ByteBuffer.wrap(bytes, 0, onDisk);
+        while (head.hasRemaining()) {
+            channel.write(head, offset + head.position());
+        }
+        // The rest is still in the buffer
+        for (int i = onDisk; i < bytes.length; i++) {
+            buffer.put((int) (offset + i - drained), bytes[i]);
+        }
+    }
+
+    /**
+     * Writes the platform line separator, like {@link BufferedWriter#newLine()}.
+     */
+    public void newLine() throws IOException {
+        write(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        write(new char[]{(char) c}, 0, 1);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        encode(CharBuffer.wrap(cbuf, off, len));
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        encode(CharBuffer.wrap(str, off, off + len));
+    }
+
+    @Override
+    public Writer append(CharSequence csq, int start, int end) throws IOException {
+        encode(CharBuffer.wrap(csq == null ? "null" : csq, start, end));
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        drain();
+    }
+
+    /**
+     * Flushes the buffer and forces everything written so far to the storage device.
+     */
+    public void sync() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            CharBuffer rest = hasPendingHighSurrogate ? CharBuffer.wrap(new char[]{pendingHighSurrogate}) : CharBuffer.allocate(0);
+            hasPendingHighSurrogate = false;
+            encode(rest, true);
+            while (encoder.flush(buffer).isOverflow()) {
+                drain();
+            }
+            drain();
+        } finally {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    private void encode(CharBuffer in) throws IOException {
+        ensureOpen();
+        if (hasPendingHighSurrogate && in.hasRemaining()) {
+            CharBuffer pair = CharBuffer.wrap(new char[]{pendingHighSurrogate, in.get()});
+            hasPendingHighSurrogate = false;
+            encode(pair, false);
+        }
+        encode(in, false);
+    }
+
+    private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+        while (true) {
+            CoderResult result = encoder.encode(in, buffer, endOfInput);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isUnderflow()) {
+                // The encoder only leaves input behind when it ends in an unpaired high surrogate
+                if (in.hasRemaining()) {
+                    pendingHighSurrogate = in.get();
+                    hasPendingHighSurrogate = true;
+                }
+                return;
+            } else {
+                result.throwException();
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            drained += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package org.zakariafarih.copyspider;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+/**
+ * Caches directory listings together with per-file fingerprints (size and modification time).
+ * A cached listing is reused as long as the directory's own modification time is unchanged,
+ * so a warm traversal costs one stat per directory instead of one per entry.
+ *
+ * <p>The cache can be saved to a compact binary snapshot and loaded in a later session. Loaded
+ * listings go through the same validation, so after a restart only the directories that changed
+ * since the snapshot are listed again.
+ *
+ * <p>A cache that lives as long as a resident process can be bounded, in which case the least
+ * recently used listings are dropped once it holds that many directories.
+ */
+public class DirectoryCache {
+
+    // Listings whose directory mtime is this close to the scan time are not trusted, because a
+    // coarse-grained file system clock could hide a change made in the same tick ("racy" entries).
+    private static final long RACY_WINDOW_MILLIS = 2000;
+    private static final int SNAPSHOT_MAGIC = 0x43535343; // "CSSC"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int FLAG_DIRECTORY = 1;
+    private static final int FLAG_REGULAR_FILE = 2;
+    private static final int FLAG_READABLE = 4;
+    // An entry with an empty name and file key: two string lengths, the flags, size and mtime
+    private static final int MIN_RECORD_BYTES = 2 + 1 + 8 + 8 + 2;
+
+    private final Map<Path, Snapshot> snapshots;
+
+    /**
+     * Creates a cache without a size limit.
+     */
+    public DirectoryCache() {
+        this(0);
+    }
+
+    /**
+     * Creates a cache holding at most {@code maxDirectories} listings; 0 means no limit.
+     */
+    public DirectoryCache(int maxDirectories) {
+        // Access order, so the eldest entry is the least recently used listing
+        snapshots = Collections.synchronizedMap(new LinkedHashMap<Path, Snapshot>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Snapshot> eldest) {
+                return maxDirectories > 0 && size() > maxDirectories;
+            }
+        });
+    }
+
+    /**
+     * Returns the entries of a directory, reusing the cached snapshot when it is still valid.
+     */
+    public List<Entry> list(Path directory) throws IOException {
+        Path key = directory.toAbsolutePath().normalize();
+        FileTime modified = Files.getLastModifiedTime(key);
+
+        Snapshot snapshot = snapshots.get(key);
+        if (snapshot != null && snapshot.isValidFor(modified)) {
+            return snapshot.getEntries();
+        }
+
+        long scannedAt = System.currentTimeMillis();
+        List<Entry> entries = scan(key);
+        snapshots.put(key, new Snapshot(modified.toMillis(), scannedAt, entries));
+        return entries;
+    }
+
+    /**
+     * Returns the cached entries of a directory without touching the disk, or null if it is not
+     * cached. The entries may be stale; use {@link #list(Path)} to validate them.
+     */
+    public List<Entry> peek(Path directory) {
+        Snapshot snapshot = snapshots.get(directory.toAbsolutePath().normalize());
+        return snapshot == null ? null : snapshot.getEntries();
+    }
+
+    /**
+     * Returns the number of directories currently held in the cache.
+     */
+    public int size() {
+        return snapshots.size();
+    }
+
+    /**
+     * Drops all cached snapshots.
+     */
+    public void clear() {
+        snapshots.clear();
+    }
+
+    /**
+     * Saves the cached listings of the given roots and their subdirectories. The snapshot is a table
+     * of directories sorted by path, each followed by its entries' names and fingerprints.
+     */
+    public void save(Path snapshotFile, Collection<Path> roots) throws IOException {
+        List<Path> rootKeys = new ArrayList<>();
+        for (Path root : roots) {
+            rootKeys.add(root.toAbsolutePath().normalize());
+        }
+        // Sorted, so snapshots of the same tree are identical and parents come before their children
+        SortedMap<String, Snapshot> selected = new TreeMap<>();
+        snapshots.forEach((directory, snapshot) -> {
+            if (rootKeys.stream().anyMatch(directory::startsWith)) {
+                selected.put(directory.toString(), snapshot);
+            }
+        });
+
+        // A temp file of its own, so concurrent saves of the same snapshot never write into each other
+        Path tempFile = Files.createTempFile(snapshotFile.toAbsolutePath().getParent(),
+                snapshotFile.getFileName().toString(), ".tmp");
+        try {
+            writeSnapshot(tempFile, selected);
+            try {
+                Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private static void writeSnapshot(Path tempFile, SortedMap<String, Snapshot> selected) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(selected.size());
+            for (Map.Entry<String, Snapshot> directory : selected.entrySet()) {
+                Snapshot snapshot = directory.getValue();
+                out.writeUTF(directory.getKey());
+                out.writeLong(snapshot.directoryModified);
+                out.writeLong(snapshot.scannedAt);
+                out.writeInt(snapshot.getEntries().size());
+                // Entries keep their listing order, which is the order files are combined in
+                for (Entry entry : snapshot.getEntries()) {
+                    out.writeUTF(entry.getPath().getFileName().toString());
+                    out.writeByte((entry.isDirectory() ? FLAG_DIRECTORY : 0)
+                            | (entry.isRegularFile() ? FLAG_REGULAR_FILE : 0)
+                            | (entry.isReadable() ? FLAG_READABLE : 0));
+                    out.writeLong(entry.getSize());
+                    out.writeLong(entry.getLastModified());
+                    out.writeUTF(entry.getFileKey() == null ? "" : entry.getFileKey().toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads listings saved by {@link #save(Path, Collection)}, replacing any cached listing of the same directories.
+     * Returns the number of directories loaded.
+     */
+    public int load(Path snapshotFile) throws IOException {
+        Map<Path, Snapshot> loaded = new HashMap<>();
+        // Every directory and entry takes at least this many bytes, which bounds any count read back
+        long maxRecords = Files.size(snapshotFile) / MIN_RECORD_BYTES;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Not a CopySpider scan snapshot: " + snapshotFile);
+            }
+            int directories = readCount(in, maxRecords, snapshotFile);
+            for (int i = 0; i < directories; i++) {
+                Path directory = Paths.get(in.readUTF());
+                long directoryModified = in.readLong();
+                long scannedAt = in.readLong();
+                int count = readCount(in, maxRecords, snapshotFile);
+                List<Entry> entries = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    Path path = directory.resolve(in.readUTF());
+                    int flags = in.readByte();
+                    long size = in.readLong();
+                    long lastModified = in.readLong();
+                    String fileKey = in.readUTF();
+                    entries.add(new Entry(path, (flags & FLAG_DIRECTORY) != 0, (flags & FLAG_REGULAR_FILE) != 0,
+                            (flags & FLAG_READABLE) != 0, size, lastModified, fileKey.isEmpty() ? null : fileKey));
+                }
+                loaded.put(directory, new Snapshot(directoryModified, scannedAt, Collections.unmodifiableList(entries)));
+            }
+        } catch (EOFException | InvalidPathException e) {
+            throw new IOException("Corrupt scan snapshot: " + snapshotFile, e);
+        }
+        snapshots.putAll(loaded);
+        return loaded.size();
+    }
+
+    /**
+     * Reads a record count, rejecting one that a damaged snapshot could not actually hold.
+     */
+    private static int readCount(DataInputStream in, long maxRecords, Path snapshotFile) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > maxRecords) {
+            throw new IOException("Corrupt scan snapshot: " + snapshotFile + " (record count " + count + ")");
+        }
+        return count;
+    }
+
+    /**
+     * Lists a directory without caching, reading each entry's attributes once.
+     */
+    public static List<Entry> scan(Path directory) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // Broken links and entries removed while listing are skipped, as before
+                    continue;
+                }
+                entries.add(new Entry(path, attributes.isDirectory(), attributes.isRegularFile(),
+                        attributes.isRegularFile() && Files.isReadable(path),
+                        attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.fileKey()));
+            }
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * A cached listing of one directory.
+     */
+    private static class Snapshot {
+        private final long directoryModified;
+        private final long scannedAt;
+        private final List<Entry> entries;
+
+        Snapshot(long directoryModified, long scannedAt, List<Entry> entries) {
+            this.directoryModified = directoryModified;
+            this.scannedAt = scannedAt;
+            this.entries = entries;
+        }
+
+        boolean isValidFor(FileTime modified) {
+            return modified.toMillis() == directoryModified
+                    && scannedAt - directoryModified > RACY_WINDOW_MILLIS;
+        }
+
+        List<Entry> getEntries() {
+            return entries;
+        }
+    }
+
+    /**
+     * A directory entry and its fingerprint.
+     */
+    public static class Entry {
+        private final Path path;
+        private final boolean directory;
+        private final boolean regularFile;
+        private final boolean readable;
+        private final long size;
+        private final long lastModified;
+        private final Object fileKey;
+
+        public Entry(Path path, boolean directory, boolean regularFile, boolean readable, long size, long lastModified,
+                     Object fileKey) {
+            this.path = path;
+            this.directory = directory;
+            this.regularFile = regularFile;
+            this.readable = readable;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public boolean isRegularFile() {
+            return regularFile;
+        }
+
+        public boolean isReadable() {
+            return readable;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns the file system's unique key for the file (device and inode on Unix), or null.
+         * Entries loaded from a saved snapshot carry the key's string form.
+         */
+        public Object getFileKey() {
+            return fileKey;
+        }
+    }
+}
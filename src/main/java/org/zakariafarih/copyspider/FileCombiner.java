@@ -0,0 +1,1014 @@
+package org.zakariafarih.copyspider;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Combines files and folders into a single output file. This is the pipeline behind both the
+ * desktop UI and the resident daemon, so it holds no UI state.
+ *
+ * <p>One run can also fan out to several output files, each with its own filter, path mode, charset
+ * and format. The tree is then walked once and every file read and decoded once; the decoded text is
+ * handed to one writer thread per output, which format and encode it concurrently.
+ */
+public class FileCombiner {
+
+    private static final Set<String> ARCHIVE_EXTENSIONS = new HashSet<>(Arrays.asList(".zip", ".jar"));
+    private static final int READ_AHEAD_THREADS = 4;
+    private static final int CHUNK_SIZE = 8192;
+    // Decoded chunks queued for the writer threads of a fan-out run (at most 16 MB of text)
+    private static final int MAX_CHUNKS_IN_FLIGHT = 1024;
+
+    private boolean useAbsolutePath = true;
+    private File baseDirectory;
+    private Set<String> activeExtensions = Collections.emptySet();
+    private int maxDepth = 5;
+    private Charset charset = StandardCharsets.UTF_8;
+    private DirectoryCache directoryCache;
+    private boolean writeIndex;
+    private boolean resume;
+    private boolean localityOrder;
+    private int maxLineLength;
+    private OutputFormat outputFormat = OutputFormat.PLAIN;
+
+    private Listener listener;
+    private List<Output> outputs;
+    private ReadAheadScheduler readAhead;
+    // Bounds the decoded text queued for the writer threads; null when a single output is written inline
+    private Semaphore chunksInFlight;
+    private final char[] inlineChunk = new char[CHUNK_SIZE];
+    // The archive on disk whose entries are being combined, or null outside of archives
+    private Path currentArchive;
+
+    /**
+     * The number and total size of the files a combination would include.
+     */
+    public static class Summary {
+        private long fileCount;
+        private long totalBytes;
+        private boolean complete = true;
+
+        private void add(long size) {
+            fileCount++;
+            totalBytes += size;
+        }
+
+        public long getFileCount() {
+            return fileCount;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * Checks if every folder could be counted; false if some were missing from the cache or unreadable.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+
+    /**
+     * One output file of a run, with the settings that may differ between the outputs of a fan-out run.
+     */
+    public static class OutputSpec {
+        private final Path outputFile;
+        private Set<String> activeExtensions = Collections.emptySet();
+        private boolean useAbsolutePath = true;
+        private File baseDirectory;
+        private Charset charset = StandardCharsets.UTF_8;
+        private OutputFormat outputFormat = OutputFormat.PLAIN;
+
+        public OutputSpec(Path outputFile) {
+            this.outputFile = outputFile;
+        }
+
+        public Path getOutputFile() {
+            return outputFile;
+        }
+
+        public Set<String> getActiveExtensions() {
+            return activeExtensions;
+        }
+
+        public void setActiveExtensions(Set<String> activeExtensions) {
+            this.activeExtensions = activeExtensions;
+        }
+
+        public boolean isUseAbsolutePath() {
+            return useAbsolutePath;
+        }
+
+        public void setUseAbsolutePath(boolean useAbsolutePath) {
+            this.useAbsolutePath = useAbsolutePath;
+        }
+
+        public File getBaseDirectory() {
+            return baseDirectory;
+        }
+
+        public void setBaseDirectory(File baseDirectory) {
+            this.baseDirectory = baseDirectory;
+        }
+
+        public Charset getCharset() {
+            return charset;
+        }
+
+        public void setCharset(Charset charset) {
+            this.charset = charset;
+        }
+
+        public OutputFormat getOutputFormat() {
+            return outputFormat;
+        }
+
+        public void setOutputFormat(OutputFormat outputFormat) {
+            this.outputFormat = outputFormat;
+        }
+    }
+
+    /**
+     * Receives progress and per-item failures while a combination runs.
+     */
+    public interface Listener {
+        void itemProcessed(int processedItems, int totalItems);
+
+        void itemFailed(Path root, IOException e);
+
+        default boolean isCancelled() {
+            return false;
+        }
+    }
+
+    public void setUseAbsolutePath(boolean useAbsolutePath) {
+        this.useAbsolutePath = useAbsolutePath;
+    }
+
+    public void setBaseDirectory(File baseDirectory) {
+        this.baseDirectory = baseDirectory;
+    }
+
+    public void setActiveExtensions(Set<String> activeExtensions) {
+        this.activeExtensions = activeExtensions;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Sets the cache used to list folders; without one every folder is listed from disk.
+     */
+    public void setDirectoryCache(DirectoryCache directoryCache) {
+        this.directoryCache = directoryCache;
+    }
+
+    /**
+     * Enables writing a sidecar section index ({@code .toc}) next to the output file.
+     */
+    public void setWriteIndex(boolean writeIndex) {
+        this.writeIndex = writeIndex;
+    }
+
+    /**
+     * Resumes an interrupted run from the checkpoint journal next to the output file instead of
+     * starting over. The roots and settings must be the same as in the interrupted run.
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Reads each folder's files ahead of the writer in physical (inode) order, which helps on
+     * spinning disks and network mounts. The output order is unchanged.
+     */
+    public void setLocalityOrder(boolean localityOrder) {
+        this.localityOrder = localityOrder;
+    }
+
+    /**
+     * Cuts lines longer than this many characters, writing a marker in place of the rest; 0 keeps every line whole.
+     */
+    public void setMaxLineLength(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Sets the layout of the combined file; plain text headers by default.
+     */
+    public void setOutputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     * Checks if an interrupted run into the given output file can be resumed.
+     */
+    public static boolean hasCheckpoint(Path outputFile) {
+        return Files.exists(CheckpointJournal.journalPathFor(outputFile));
+    }
+
+    /**
+     * Combines the given roots into the output file and returns the number of files written.
+     * Failures on individual roots are reported to the listener; failures on the output abort the run.
+     * A checkpoint journal is kept while the run is in progress and removed once it completes, so a
+     * cancelled or crashed run can be resumed with {@link #setResume(boolean)}.
+     */
+    public int combine(List<Path> roots, Path outputFile, Listener listener) throws IOException {
+        OutputSpec spec = new OutputSpec(outputFile);
+        spec.setActiveExtensions(activeExtensions);
+        spec.setUseAbsolutePath(useAbsolutePath);
+        spec.setBaseDirectory(baseDirectory);
+        spec.setCharset(charset);
+        spec.setOutputFormat(outputFormat);
+        return combine(roots, Collections.singletonList(spec), listener).get(0);
+    }
+
+    /**
+     * Combines the given roots into several output files in one pass and returns the number of files
+     * written to each, in the order of the specs. The depth, line length, index, resume and locality
+     * settings apply to every output; the rest come from each spec. Every output keeps its own
+     * checkpoint journal. A failure while writing one output is reported for the root being written,
+     * and that output skips the rest of the root while the others carry on.
+     */
+    public List<Integer> combine(List<Path> roots, List<OutputSpec> specs, Listener listener) throws IOException {
+        if (specs.isEmpty()) {
+            throw new IllegalArgumentException("At least one output file is required");
+        }
+        Set<Path> outputFiles = new HashSet<>();
+        for (OutputSpec spec : specs) {
+            if (!outputFiles.add(spec.getOutputFile().toAbsolutePath().normalize())) {
+                throw new IllegalArgumentException("The same output file is given twice: " + spec.getOutputFile());
+            }
+        }
+        this.listener = listener;
+
+        // Every output's checkpoint is validated before any output file is touched
+        List<Output> outputs = new ArrayList<>();
+        for (OutputSpec spec : specs) {
+            outputs.add(new Output(spec, roots));
+        }
+
+        boolean concurrent = outputs.size() > 1;
+        this.outputs = outputs;
+        this.chunksInFlight = concurrent ? new Semaphore(MAX_CHUNKS_IN_FLIGHT) : null;
+        List<Output> opened = new ArrayList<>();
+        try {
+            for (Output output : outputs) {
+                output.open(concurrent);
+                opened.add(output);
+            }
+            this.readAhead = localityOrder ? new ReadAheadScheduler(READ_AHEAD_THREADS) : null;
+            int totalItems = roots.size();
+            int processedItems = 0;
+
+            for (Path root : roots) {
+                if (listener.isCancelled()) {
+                    break;
+                }
+
+                for (Output output : outputs) {
+                    output.startRoot(root);
+                }
+                try {
+                    processRoot(root);
+                } catch (IOException e) {
+                    listener.itemFailed(root, e);
+                }
+                // Outputs stopped by the same unreadable file share one failure
+                Set<IOException> rootFailures = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (Output output : outputs) {
+                    if (output.rootFailure != null && rootFailures.add(output.rootFailure)) {
+                        listener.itemFailed(root, output.rootFailure);
+                    }
+                }
+
+                processedItems++;
+                listener.itemProcessed(processedItems, totalItems);
+            }
+
+            for (Output output : outputs) {
+                output.finish();
+            }
+            for (Output output : outputs) {
+                output.awaitFinished();
+            }
+        } finally {
+            this.outputs = null;
+            this.chunksInFlight = null;
+            if (readAhead != null) {
+                readAhead.close();
+                readAhead = null;
+            }
+            closeAll(opened);
+        }
+
+        List<Integer> filesWritten = new ArrayList<>();
+        for (Output output : outputs) {
+            output.complete(listener.isCancelled());
+            filesWritten.add(output.filesWritten);
+        }
+        return filesWritten;
+    }
+
+    /**
+     * Stops the writer threads and closes every opened output, rethrowing the first failure.
+     */
+    private static void closeAll(List<Output> opened) throws IOException {
+        IOException failure = null;
+        for (Output output : opened) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Counts the files a combination of the given roots would include, with the current filters and depth.
+     * With {@code cachedOnly}, only the directory cache is consulted and nothing is read from disk
+     * except the sizes of root files; otherwise changed directories are listed again. Archives count as
+     * one file each, as their entries are only known once opened.
+     */
+    public Summary summarize(List<Path> roots, boolean cachedOnly) throws IOException {
+        if (cachedOnly && directoryCache == null) {
+            throw new IllegalStateException("A directory cache is required to summarize from cache");
+        }
+        Summary summary = new Summary();
+        for (Path root : roots) {
+            if (Files.isDirectory(root)) {
+                summarizeFolder(summary, root, 0, cachedOnly);
+            } else if (Files.isRegularFile(root)) {
+                summary.add(Files.size(root));
+            } else {
+                summary.complete = false;
+            }
+        }
+        return summary;
+    }
+
+    private void summarizeFolder(Summary summary, Path folderPath, int currentDepth, boolean cachedOnly) {
+        if (currentDepth > maxDepth) {
+            return;
+        }
+        List<DirectoryCache.Entry> entries;
+        try {
+            entries = cachedOnly ? directoryCache.peek(folderPath) : listFolder(folderPath);
+        } catch (IOException e) {
+            entries = null;
+        }
+        if (entries == null) {
+            summary.complete = false;
+            return;
+        }
+        for (DirectoryCache.Entry entry : entries) {
+            if (entry.isDirectory()) {
+                summarizeFolder(summary, entry.getPath(), currentDepth + 1, cachedOnly);
+            } else if (entry.isRegularFile() && entry.isReadable() && matchesExtensions(activeExtensions, entry.getPath())) {
+                summary.add(entry.getSize());
+            }
+        }
+    }
+
+    /**
+     * Processes a single selected file, folder or archive, writing its content to the combined files.
+     */
+    private void processRoot(Path root) throws IOException {
+        if (Files.isDirectory(root)) {
+            processFolder(root, 0);
+        } else if (isArchive(root)) {
+            processArchive(root);
+        } else {
+            writeFile(root, true, null);
+        }
+    }
+
+    /**
+     * Processes the entries of a zip or jar archive in place through the zip file system,
+     * applying the same depth and extension filters as a folder.
+     */
+    private void processArchive(Path archive) throws IOException {
+        try (FileSystem zipFileSystem = FileSystems.newFileSystem(archive)) {
+            currentArchive = archive;
+            for (Path root : zipFileSystem.getRootDirectories()) {
+                processFolder(root, 0);
+            }
+        } catch (ProviderNotFoundException e) {
+            throw new IOException("Not a readable archive: " + archive, e);
+        } finally {
+            currentArchive = null;
+        }
+    }
+
+    /**
+     * Recursively processes a folder, writing each file's content to the combined files.
+     */
+    private void processFolder(Path folderPath, int currentDepth) throws IOException {
+        if (currentDepth > maxDepth) {
+            return;
+        }
+
+        IOException[] failuresBefore = new IOException[outputs.size()];
+        for (int i = 0; i < failuresBefore.length; i++) {
+            failuresBefore[i] = outputs.get(i).rootFailure;
+        }
+        try {
+            List<DirectoryCache.Entry> entries = listFolder(folderPath);
+            try (ReadAheadScheduler.Batch batch = scheduleReadAhead(entries)) {
+                for (DirectoryCache.Entry entry : entries) {
+                    if (listener.isCancelled()) {
+                        return;
+                    }
+                    if (entry.isDirectory()) {
+                        processFolder(entry.getPath(), currentDepth + 1);
+                    } else if (isIncluded(entry)) {
+                        writeFile(entry.getPath(), false, batch != null ? batch.take(entry.getPath()) : null);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IOException("Failed to process folder: " + folderPath.toString(), e);
+        } finally {
+            // Failures that stopped only some outputs are wrapped the way a thrown one would be
+            Map<IOException, IOException> wrapped = new IdentityHashMap<>();
+            for (int i = 0; i < failuresBefore.length; i++) {
+                Output output = outputs.get(i);
+                if (output.rootFailure != failuresBefore[i]) {
+                    output.rootFailure = wrapped.computeIfAbsent(output.rootFailure,
+                            failure -> new IOException("Failed to process folder: " + folderPath.toString(), failure));
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if a folder entry is a readable file that passes the extension filter of at least one output.
+     */
+    private boolean isIncluded(DirectoryCache.Entry entry) {
+        if (!entry.isRegularFile() || !entry.isReadable()) {
+            return false;
+        }
+        for (Output output : outputs) {
+            if (output.rootFailure == null && output.accepts(entry.getPath())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if a file passes an extension filter; an empty filter passes every file.
+     */
+    private static boolean matchesExtensions(Set<String> extensions, Path file) {
+        return extensions.isEmpty() || extensions.contains(getFileExtension(file.getFileName().toString()));
+    }
+
+    /**
+     * Starts reading a folder's files in physical order when locality ordering is enabled.
+     * Returns null when there is nothing to read ahead.
+     */
+    private ReadAheadScheduler.Batch scheduleReadAhead(List<DirectoryCache.Entry> entries) {
+        if (readAhead == null || currentArchive != null) {
+            return null;
+        }
+        List<DirectoryCache.Entry> files = new ArrayList<>();
+        for (DirectoryCache.Entry entry : entries) {
+            // Files already written before a resumed checkpoint are skipped, so never read them
+            if (entry.isRegularFile() && entry.isReadable() && isPending(entry.getPath())) {
+                files.add(entry);
+            }
+        }
+        return files.isEmpty() ? null : readAhead.schedule(files);
+    }
+
+    /**
+     * Checks if some output still has to write a file, without consuming its resumed matches.
+     */
+    private boolean isPending(Path file) {
+        for (Output output : outputs) {
+            if (output.rootFailure == null && output.accepts(file)) {
+                try {
+                    if (!output.completedBeforeResume.containsKey(headerPath(output.spec, file))) {
+                        return true;
+                    }
+                } catch (SecurityException e) {
+                    // Left to writeFile, which reports it for this output
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lists a folder through the directory cache when one is configured.
+     */
+    private List<DirectoryCache.Entry> listFolder(Path folderPath) throws IOException {
+        // Archive file systems are closed after each run, so their listings are never cached
+        boolean cacheable = directoryCache != null && folderPath.getFileSystem() == FileSystems.getDefault();
+        return cacheable ? directoryCache.list(folderPath) : DirectoryCache.scan(folderPath);
+    }
+
+    /**
+     * Reads a file once and writes its content with a header to every output that takes it.
+     * Selected root files bypass the extension filters, as they were picked explicitly.
+     * If the file cannot be read, its partly written sections are discarded so every output stays well
+     * formed, and the outputs that take it skip the rest of the root, as they would in a run of their
+     * own; the failure is only thrown once no other output is left to write. A file outside an
+     * output's base directory likewise stops only that output when there are several.
+     */
+    private void writeFile(Path file, boolean root, byte[] prefetched) throws IOException {
+        List<Output> targets = new ArrayList<>();
+        List<String> headers = new ArrayList<>();
+        int liveOutputs = 0;
+        for (Output output : outputs) {
+            if (output.rootFailure != null) {
+                continue;
+            }
+            liveOutputs++;
+            if (root || output.accepts(file)) {
+                String pathToWrite;
+                try {
+                    pathToWrite = headerPath(output.spec, file);
+                } catch (SecurityException e) {
+                    if (outputs.size() == 1) {
+                        throw e;
+                    }
+                    // A base directory that does not contain the root only stops the output it belongs to
+                    output.rootFailure = new IOException("Cannot write " + output.spec.getOutputFile() + ": " + e.getMessage(), e);
+                    continue;
+                }
+                if (!output.skipCompleted(pathToWrite)) {
+                    targets.add(output);
+                    headers.add(pathToWrite);
+                }
+            }
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        try {
+            writeContent(file, prefetched, targets, headers);
+        } catch (IOException e) {
+            for (Output output : targets) {
+                try {
+                    output.abortSection();
+                } catch (IOException abortFailure) {
+                    e.addSuppressed(abortFailure);
+                }
+            }
+            if (targets.size() == liveOutputs) {
+                throw e;
+            }
+            for (Output output : targets) {
+                output.rootFailure = e;
+            }
+        }
+    }
+
+    private void writeContent(Path file, byte[] prefetched, List<Output> targets, List<String> headers) throws IOException {
+        boolean needsBacktickScan = false;
+        for (Output output : targets) {
+            needsBacktickScan |= output.formatter.needsBacktickScan();
+        }
+        int longestBacktickRun = needsBacktickScan ? longestBacktickRun(file, prefetched) : 0;
+        for (int i = 0; i < targets.size(); i++) {
+            targets.get(i).beginSection(headers.get(i), longestBacktickRun);
+        }
+
+        // Stream in chunks rather than lines so a single huge line never becomes one huge String
+        InputStream in = prefetched != null ? new ByteArrayInputStream(prefetched) : Files.newInputStream(file);
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8.newDecoder())) {
+            if (chunksInFlight == null) {
+                int read;
+                while ((read = reader.read(inlineChunk)) != -1) {
+                    targets.get(0).writeChunk(inlineChunk, read, null);
+                }
+            } else {
+                // The writer threads share each chunk, so every chunk gets its own array
+                char[] chunk = new char[CHUNK_SIZE];
+                int read;
+                while ((read = reader.read(chunk)) != -1) {
+                    acquireChunk();
+                    AtomicInteger pending = new AtomicInteger(targets.size());
+                    Runnable release = () -> {
+                        if (pending.decrementAndGet() == 0) {
+                            chunksInFlight.release();
+                        }
+                    };
+                    for (Output output : targets) {
+                        output.writeChunk(chunk, read, release);
+                    }
+                    chunk = new char[CHUNK_SIZE];
+                }
+            }
+        } catch (MalformedInputException e) {
+            throw new IOException("Unsupported encoding in file: " + file.toAbsolutePath(), e);
+        }
+
+        for (Output output : targets) {
+            output.endSection();
+        }
+    }
+
+    /**
+     * Waits until the writer threads have room for another decoded chunk.
+     */
+    private void acquireChunk() throws InterruptedIOException {
+        try {
+            chunksInFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the output writers");
+        }
+    }
+
+    /**
+     * Returns the longest run of backticks in a file, which a Markdown fence has to be longer than.
+     * The backtick byte never occurs inside a multi-byte UTF-8 sequence, so the raw bytes are scanned.
+     */
+    private static int longestBacktickRun(Path file, byte[] prefetched) throws IOException {
+        int longest = 0;
+        int run = 0;
+        try (InputStream in = prefetched != null ? new ByteArrayInputStream(prefetched) : Files.newInputStream(file)) {
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    if (chunk[i] == '`') {
+                        run++;
+                        longest = Math.max(longest, run);
+                    } else {
+                        run = 0;
+                    }
+                }
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Describes everything that determines an output, so a checkpoint is only resumed with the same settings.
+     */
+    private String describeSettings(List<Path> roots, OutputSpec spec) {
+        List<String> extensions = new ArrayList<>(spec.getActiveExtensions());
+        Collections.sort(extensions);
+        return "absolute=" + spec.isUseAbsolutePath()
+                + ";base=" + (spec.getBaseDirectory() == null ? "" : spec.getBaseDirectory().getAbsolutePath())
+                + ";extensions=" + String.join(",", extensions)
+                + ";depth=" + maxDepth
+                + ";maxLineLength=" + maxLineLength
+                + ";format=" + spec.getOutputFormat().name()
+                + ";charset=" + spec.getCharset().name()
+                + ";roots=" + roots.stream().map(root -> root.toAbsolutePath().toString()).collect(Collectors.joining("|"));
+    }
+
+    /**
+     * Returns the path written in a file's section header; archive entries are prefixed with the archive.
+     */
+    private String headerPath(OutputSpec spec, Path file) {
+        if (currentArchive != null) {
+            return displayPath(spec, currentArchive) + "!" + file.toString();
+        }
+        return displayPath(spec, file);
+    }
+
+    /**
+     * Returns the path written in a section header, either absolute or relative to the base directory.
+     */
+    private static String displayPath(OutputSpec spec, Path file) {
+        if (spec.isUseAbsolutePath()) {
+            return file.toAbsolutePath().toString();
+        }
+        Path basePath = spec.getBaseDirectory().toPath().toAbsolutePath().normalize();
+        Path filePath = file.toAbsolutePath().normalize();
+        if (!filePath.startsWith(basePath)) {
+            throw new SecurityException("File path " + filePath + " is outside the base directory " + basePath);
+        }
+        return basePath.relativize(filePath).toString();
+    }
+
+    /**
+     * Checks if a path is a zip or jar archive that can be combined without extraction.
+     */
+    static boolean isArchive(Path path) {
+        return Files.isRegularFile(path)
+                && ARCHIVE_EXTENSIONS.contains(getFileExtension(path.getFileName().toString().toLowerCase()));
+    }
+
+    /**
+     * Extracts the file extension from a file name.
+     */
+    static String getFileExtension(String fileName) {
+        int index = fileName.lastIndexOf('.');
+        return index > 0 ? fileName.substring(index) : "";
+    }
+
+    /**
+     * A step of writing an output, run inline or on the output's writer thread.
+     */
+    private interface WriteTask {
+        void run() throws IOException;
+    }
+
+    /**
+     * The state of one output file during a run. With a single output every step runs inline on the
+     * traversing thread. With several, each output's steps run in order on its own writer thread, and
+     * its failures are reported once the run is over.
+     */
+    private class Output {
+        private final OutputSpec spec;
+        private final Path journalFile;
+        private final String settings;
+        private final CheckpointJournal.State resumed;
+        private final SectionFormatter formatter;
+        private final LineNormalizer lineNormalizer = new LineNormalizer(maxLineLength);
+        private final SectionIndex sectionIndex;
+        // Header paths of files already in the output when resuming, with their number of occurrences
+        private final Map<String, Integer> completedBeforeResume = new HashMap<>();
+        private int filesWritten;
+        // Why the traversal stopped writing this output for the rest of the current root, if it did
+        private IOException rootFailure;
+
+        private CombinedWriter writer;
+        private CheckpointJournal journal;
+        private ExecutorService writerThread;
+
+        // The section being written; sectionStart is -1 between sections
+        private long sectionStart = -1;
+        private String sectionPath;
+        private Writer content;
+        private long contentOffset;
+
+        // Only touched by the writer thread, and read once it has terminated
+        private Path currentRoot;
+        private boolean rootFailed;
+        private final Map<Path, IOException> failures = new LinkedHashMap<>();
+        private IOException fatal;
+
+        Output(OutputSpec spec, List<Path> roots) throws IOException {
+            this.spec = spec;
+            this.journalFile = CheckpointJournal.journalPathFor(spec.getOutputFile());
+            this.settings = describeSettings(roots, spec);
+            this.formatter = spec.getOutputFormat().newFormatter();
+            this.sectionIndex = writeIndex ? new SectionIndex(spec.getCharset().name(), spec.getOutputFormat()) : null;
+
+            if (!resume) {
+                this.resumed = null;
+                return;
+            }
+            if (!Files.exists(journalFile)) {
+                throw new FileNotFoundException("No checkpoint to resume from: " + journalFile);
+            }
+            this.resumed = CheckpointJournal.read(journalFile);
+            if (!resumed.getSettings().equals(settings)) {
+                throw new IOException("The checkpoint in " + journalFile + " was taken with different files or settings and cannot be resumed.");
+            }
+            for (SectionIndex.Section section : resumed.getCompletedSections()) {
+                completedBeforeResume.merge(section.getPath(), 1, Integer::sum);
+                if (sectionIndex != null) {
+                    sectionIndex.add(section.getPath(), section.getOffset(), section.getLength());
+                }
+            }
+            filesWritten = resumed.getCompletedSections().size();
+        }
+
+        /**
+         * Opens the output file, truncated to the checkpoint when resuming, and its journal.
+         */
+        void open(boolean concurrent) throws IOException {
+            Path outputFile = spec.getOutputFile();
+            // An index left over from an earlier run would point at the wrong offsets
+            Files.deleteIfExists(SectionIndex.indexPathFor(outputFile));
+
+            writer = resumed != null
+                    ? new CombinedWriter(outputFile, spec.getCharset(), resumed.getCheckpointOffset())
+                    : new CombinedWriter(outputFile, spec.getCharset());
+            try {
+                journal = new CheckpointJournal(journalFile, settings, resumed);
+            } catch (IOException e) {
+                writer.close();
+                throw e;
+            }
+            if (concurrent) {
+                String name = "combine-writer-" + outputFile.getFileName();
+                writerThread = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+
+        boolean accepts(Path file) {
+            return matchesExtensions(spec.getActiveExtensions(), file);
+        }
+
+        /**
+         * Checks if a file was already written before the checkpoint being resumed from, consuming the match.
+         */
+        boolean skipCompleted(String pathToWrite) {
+            Integer remaining = completedBeforeResume.get(pathToWrite);
+            if (remaining == null) {
+                return false;
+            }
+            if (remaining == 1) {
+                completedBeforeResume.remove(pathToWrite);
+            } else {
+                completedBeforeResume.put(pathToWrite, remaining - 1);
+            }
+            return true;
+        }
+
+        void startRoot(Path root) {
+            rootFailure = null;
+            if (writerThread != null) {
+                writerThread.execute(() -> {
+                    currentRoot = root;
+                    rootFailed = false;
+                });
+            }
+        }
+
+        void beginSection(String pathToWrite, int longestBacktickRun) throws IOException {
+            execute(() -> {
+                sectionStart = writer.position();
+                sectionPath = pathToWrite;
+                content = formatter.beginSection(writer, pathToWrite, longestBacktickRun);
+                contentOffset = writer.position();
+                lineNormalizer.begin();
+            }, null);
+        }
+
+        void writeChunk(char[] chunk, int length, Runnable release) throws IOException {
+            execute(() -> lineNormalizer.write(chunk, length, content), release);
+        }
+
+        void endSection() throws IOException {
+            execute(() -> {
+                lineNormalizer.end(content);
+                long contentLength = writer.position() - contentOffset;
+                if (sectionIndex != null) {
+                    sectionIndex.add(sectionPath, contentOffset, contentLength);
+                }
+                formatter.endSection(writer, contentOffset, contentLength);
+                sectionStart = -1;
+                filesWritten++;
+
+                journal.fileCompleted(sectionPath, contentOffset, contentLength);
+                if (journal.isCheckpointDue(writer.position())) {
+                    checkpoint();
+                }
+            }, null);
+        }
+
+        /**
+         * Drops the section being written after its file could not be read to the end.
+         */
+        void abortSection() throws IOException {
+            execute(this::discardSection, null);
+        }
+
+        /**
+         * Rolls the output back to the start of an unfinished section, so no header, open fence,
+         * unterminated string or length placeholder is left behind.
+         */
+        private void discardSection() throws IOException {
+            if (sectionStart >= 0) {
+                writer.truncate(sectionStart);
+                sectionStart = -1;
+            }
+        }
+
+        /**
+         * Runs a step inline, or queues it on the writer thread. Once a queued step fails, its section
+         * is discarded and the rest of the root is skipped for this output. {@code release} runs after
+         * the step either way.
+         */
+        private void execute(WriteTask task, Runnable release) throws IOException {
+            if (writerThread == null) {
+                task.run();
+                return;
+            }
+            writerThread.execute(() -> {
+                try {
+                    if (!rootFailed && fatal == null) {
+                        task.run();
+                    }
+                } catch (IOException e) {
+                    rootFailed = true;
+                    failures.putIfAbsent(currentRoot,
+                            new IOException("Failed to write " + spec.getOutputFile() + ": " + e.getMessage(), e));
+                    try {
+                        discardSection();
+                    } catch (IOException discardFailure) {
+                        fatal = discardFailure;
+                    }
+                } catch (RuntimeException e) {
+                    fatal = new IOException("Failed to write " + spec.getOutputFile() + ": " + e, e);
+                } finally {
+                    if (release != null) {
+                        release.run();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Syncs the output to disk and records everything written so far as complete.
+         */
+        private void checkpoint() throws IOException {
+            writer.sync();
+            journal.checkpoint(writer.position());
+        }
+
+        /**
+         * Takes the final checkpoint once everything queued so far has been written.
+         */
+        void finish() throws IOException {
+            if (writerThread == null) {
+                checkpoint();
+                return;
+            }
+            writerThread.execute(() -> {
+                try {
+                    if (fatal == null) {
+                        checkpoint();
+                    }
+                } catch (IOException e) {
+                    fatal = e;
+                }
+            });
+            writerThread.shutdown();
+        }
+
+        /**
+         * Waits for the writer thread to drain its queue, then reports its failures per root and
+         * rethrows one that stopped the output altogether.
+         */
+        void awaitFinished() throws IOException {
+            if (writerThread == null) {
+                return;
+            }
+            try {
+                writerThread.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + spec.getOutputFile());
+            }
+            failures.forEach(listener::itemFailed);
+            if (fatal != null) {
+                throw fatal;
+            }
+        }
+
+        /**
+         * Lets the writer thread drain if the run was aborted, then closes the journal and the output file.
+         */
+        void close() throws IOException {
+            if (writerThread != null && !writerThread.isTerminated()) {
+                // Not interrupted: an interrupt inside a FileChannel operation closes the channel
+                writerThread.shutdown();
+                try {
+                    writerThread.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            try {
+                journal.close();
+            } finally {
+                writer.close();
+            }
+        }
+
+        /**
+         * Removes the journal once the run has completed and writes the section index.
+         */
+        void complete(boolean cancelled) throws IOException {
+            if (!cancelled) {
+                journal.delete();
+            }
+            if (sectionIndex != null) {
+                sectionIndex.write(SectionIndex.indexPathFor(spec.getOutputFile()));
+            }
+        }
+    }
+}
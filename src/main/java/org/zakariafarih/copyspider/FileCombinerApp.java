@@ -19,6 +19,9 @@ import java.io.*;
 import java.nio.charset.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 public class FileCombinerApp extends Application {
@@ -33,13 +36,27 @@ public class FileCombinerApp extends Application {
     private Button selectBaseButton;
 
     private ComboBox<String> encodingComboBox;
+    private ComboBox<OutputFormat> outputFormatComboBox;
     private TextField fileTypeFilterField;
     private Spinner<Integer> depthSpinner;
+    private CheckBox writeIndexCheckBox;
+    private CheckBox localityOrderCheckBox;
+    private Spinner<Integer> maxLineLengthSpinner;
 
     private File baseDirectory = null;
+    private final DirectoryCache directoryCache = new DirectoryCache();
+    // The profile last opened or saved; its scan snapshot is refreshed after each combine
+    private SelectionProfile activeProfile;
+    // Snapshots are written one at a time, so an older one never replaces a newer one
+    private final ExecutorService snapshotSaver = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "snapshot-saver");
+        thread.setDaemon(true);
+        return thread;
+    });
     private Set<String> supportedExtensions = new HashSet<>(Arrays.asList(".txt", ".java", ".csv"));
 
     private ProgressBar progressBar;
+    private Label selectionSummaryLabel;
     private MenuBar menuBar;
 
     // Buttons defined as instance variables for event handling
@@ -47,8 +64,24 @@ public class FileCombinerApp extends Application {
     private Button selectFoldersButton;
     private Button clearSelectionButton;
     private Button combineButton;
+    private Button cancelButton;
+    private Button previewButton;
 
-    public static void main(String[] args) {
+    // The last combined file and its charset, for the preview button
+    private Path lastOutputFile;
+    private Charset lastOutputCharset;
+
+    public static void main(String[] args) throws IOException {
+        // Headless resident mode: serve combine jobs over the loopback API instead of opening the UI
+        if (args.length > 0 && args[0].equals("--daemon")) {
+            CombineDaemon.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // Section extraction from an indexed combined file
+        if (args.length > 0 && Arrays.asList("--list", "--extract", "--split").contains(args[0])) {
+            CombinedFileReader.run(args);
+            return;
+        }
         launch(args);
     }
 
@@ -104,6 +137,9 @@ public class FileCombinerApp extends Application {
         MenuItem selectFilesItem = new MenuItem("Select Files");
         MenuItem selectFoldersItem = new MenuItem("Select Folders");
         MenuItem clearSelectionItem = new MenuItem("Clear Selection");
+        MenuItem openProfileItem = new MenuItem("Open Profile...");
+        MenuItem saveProfileItem = new MenuItem("Save Profile...");
+        MenuItem previewItem = new MenuItem("Preview Combined File...");
         MenuItem exitItem = new MenuItem("Exit");
 
         selectFilesItem.setOnAction(e -> selectFiles(primaryStage));
@@ -113,9 +149,13 @@ public class FileCombinerApp extends Application {
                 fileItems.clear();
             }
         });
+        openProfileItem.setOnAction(e -> openProfile());
+        saveProfileItem.setOnAction(e -> saveProfile());
+        previewItem.setOnAction(e -> selectFileToPreview(primaryStage));
         exitItem.setOnAction(e -> Platform.exit());
 
-        fileMenu.getItems().addAll(selectFilesItem, selectFoldersItem, clearSelectionItem, new SeparatorMenuItem(), exitItem);
+        fileMenu.getItems().addAll(selectFilesItem, selectFoldersItem, clearSelectionItem, new SeparatorMenuItem(),
+                openProfileItem, saveProfileItem, new SeparatorMenuItem(), previewItem, new SeparatorMenuItem(), exitItem);
 
         // Help Menu
         Menu helpMenu = new Menu("Help");
@@ -225,7 +265,13 @@ public class FileCombinerApp extends Application {
         encodingComboBox.setValue("UTF-8");
         encodingComboBox.setTooltip(new Tooltip("Select the encoding for reading and writing files"));
 
-        encodingBox.getChildren().addAll(encodingLabel, encodingComboBox);
+        Label outputFormatLabel = new Label("Output Format:");
+        outputFormatComboBox = new ComboBox<>();
+        outputFormatComboBox.getItems().addAll(OutputFormat.values());
+        outputFormatComboBox.setValue(OutputFormat.PLAIN);
+        outputFormatComboBox.setTooltip(new Tooltip("Select how each file is framed in the combined output"));
+
+        encodingBox.getChildren().addAll(encodingLabel, encodingComboBox, outputFormatLabel, outputFormatComboBox);
 
         // Recursive Depth Control
         HBox depthBox = new HBox(10);
@@ -238,6 +284,24 @@ public class FileCombinerApp extends Application {
 
         depthBox.getChildren().addAll(depthLabel, depthSpinner);
 
+        // Output Options
+        HBox outputOptionsBox = new HBox(10);
+        outputOptionsBox.setAlignment(Pos.CENTER_LEFT);
+
+        writeIndexCheckBox = new CheckBox("Write section index (.toc)");
+        writeIndexCheckBox.setTooltip(new Tooltip("Record each file's byte offset and length in a sidecar index for fast extraction"));
+
+        localityOrderCheckBox = new CheckBox("Optimize reads for HDD/network drives");
+        localityOrderCheckBox.setTooltip(new Tooltip("Read each folder's files in on-disk order with read-ahead; the output order stays the same"));
+
+        Label maxLineLengthLabel = new Label("Max Line Length:");
+        maxLineLengthSpinner = new Spinner<>(0, Integer.MAX_VALUE, 0, 1000);
+        maxLineLengthSpinner.setEditable(true);
+        maxLineLengthSpinner.setPrefWidth(110);
+        maxLineLengthSpinner.setTooltip(new Tooltip("Cut longer lines and mark the cut (0 = no limit)"));
+
+        outputOptionsBox.getChildren().addAll(writeIndexCheckBox, localityOrderCheckBox, maxLineLengthLabel, maxLineLengthSpinner);
+
         // Combine Button
         combineButton = new Button("Combine Files");
         combineButton.setMaxWidth(Double.MAX_VALUE);
@@ -249,7 +313,24 @@ public class FileCombinerApp extends Application {
         progressBar.setVisible(false);
         progressBar.setTooltip(new Tooltip("Shows the progress of the file combination process"));
 
-        bottomBox.getChildren().addAll(pathOptionsBox, encodingBox, depthBox, combineButton, progressBar);
+        // Cancel Button, shown only while combining
+        cancelButton = new Button("Cancel");
+        cancelButton.setVisible(false);
+        cancelButton.setTooltip(new Tooltip("Stop after the current file; the run can be resumed later"));
+
+        // Preview Button, shown once a combined file has been written
+        previewButton = new Button("Preview Output");
+        previewButton.setVisible(false);
+        previewButton.setTooltip(new Tooltip("Page through the combined file without loading it into memory"));
+        previewButton.setOnAction(e -> openPreview(primaryStage, lastOutputFile, lastOutputCharset));
+
+        HBox progressBox = new HBox(10, progressBar, cancelButton, previewButton);
+        progressBox.setAlignment(Pos.CENTER_LEFT);
+
+        // Selection Summary, filled in when a profile is opened or saved
+        selectionSummaryLabel = new Label();
+
+        bottomBox.getChildren().addAll(selectionSummaryLabel, pathOptionsBox, encodingBox, depthBox, outputOptionsBox, combineButton, progressBox);
         return bottomBox;
     }
 
@@ -342,6 +423,7 @@ public class FileCombinerApp extends Application {
                 FileChooser.ExtensionFilter extFilter = new FileChooser.ExtensionFilter(
                         "Supported Files (" + String.join(", ", extensionList) + ")", extensionList);
                 fileChooser.getExtensionFilters().add(extFilter);
+                fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Archives (*.zip, *.jar)", "*.zip", "*.jar"));
             }
         }
         List<File> selectedFiles = fileChooser.showOpenMultipleDialog(stage);
@@ -478,6 +560,7 @@ public class FileCombinerApp extends Application {
 
     /**
      * Adds a file to the table after validating its readability and supported extension.
+     * Zip and jar archives are added as roots whose entries are combined without extraction.
      */
     private void addFileItem(File file) {
         if (file.isFile()) {
@@ -485,6 +568,10 @@ public class FileCombinerApp extends Application {
                 showAlert(Alert.AlertType.WARNING, "Permission Denied", "Cannot read file: " + file.getAbsolutePath());
                 return;
             }
+            if (FileCombiner.isArchive(file.toPath())) {
+                addArchiveItem(file);
+                return;
+            }
             if (!isSupportedFile(file)) {
                 showAlert(Alert.AlertType.WARNING, "Unsupported File Type", "File type not supported: " + file.getName());
                 return;
@@ -510,6 +597,17 @@ public class FileCombinerApp extends Application {
         }
     }
 
+    /**
+     * Adds a zip or jar archive to the table; its entries are filtered like a folder's files.
+     */
+    private void addArchiveItem(File archive) {
+        // Avoid duplicates
+        boolean exists = fileItems.stream().anyMatch(item -> item.getPath().equals(archive.getAbsolutePath()));
+        if (!exists) {
+            fileItems.add(new FileItem(archive.getAbsolutePath(), "Archive"));
+        }
+    }
+
     /**
      * Opens a DirectoryChooser to select the base directory for relative paths.
      */
@@ -548,14 +646,20 @@ public class FileCombinerApp extends Application {
         // Choose output file location
         FileChooser fileChooser = new FileChooser();
         fileChooser.setTitle("Save Combined File");
-        fileChooser.setInitialFileName("combined.txt");
+        fileChooser.setInitialFileName(outputFormatComboBox.getValue().getDefaultFileName());
         File outputFile = fileChooser.showSaveDialog(stage);
         if (outputFile == null) {
             return; // User cancelled
         }
 
+        // Offer to resume an interrupted run into the same file
+        boolean resume = false;
+        if (FileCombiner.hasCheckpoint(outputFile.toPath())) {
+            resume = confirmAction("An interrupted combination into \"" + outputFile.getName() + "\" was found. Do you want to resume it from its last checkpoint?");
+        }
+
         // Check if output file exists
-        if (outputFile.exists()) {
+        if (!resume && outputFile.exists()) {
             if (!confirmAction("The file \"" + outputFile.getName() + "\" already exists. Do you want to overwrite it?")) {
                 return;
             }
@@ -573,50 +677,65 @@ public class FileCombinerApp extends Application {
 
         // Get file type filters
         String filterText = fileTypeFilterField.getText().trim();
-        Set<String> activeExtensions = new HashSet<>();
-        if (!filterText.isEmpty()) {
-            activeExtensions = Arrays.stream(filterText.split(","))
-                    .map(ext -> ext.trim().toLowerCase())
-                    .filter(ext -> ext.startsWith("."))
-                    .collect(Collectors.toSet());
-            if (activeExtensions.isEmpty()) {
-                showAlert(Alert.AlertType.WARNING, "Invalid File Type Filter", "Please enter valid file extensions starting with a dot.");
-                return;
-            }
+        Set<String> activeExtensions = parseExtensionFilter(filterText);
+        if (!filterText.isEmpty() && activeExtensions.isEmpty()) {
+            showAlert(Alert.AlertType.WARNING, "Invalid File Type Filter", "Please enter valid file extensions starting with a dot.");
+            return;
         }
 
         // Get recursive depth
         int maxDepth = depthSpinner.getValue();
 
+        // Snapshot the selection so the background task never touches the observable list
+        List<Path> roots = fileItems.stream()
+                .map(item -> Paths.get(item.getPath()))
+                .collect(Collectors.toList());
+
+        FileCombiner combiner = new FileCombiner();
+        combiner.setUseAbsolutePath(useAbsolutePath);
+        combiner.setBaseDirectory(baseDirectory);
+        combiner.setActiveExtensions(activeExtensions);
+        combiner.setMaxDepth(maxDepth);
+        combiner.setCharset(charset);
+        combiner.setDirectoryCache(directoryCache);
+        combiner.setWriteIndex(writeIndexCheckBox.isSelected());
+        combiner.setResume(resume);
+        combiner.setLocalityOrder(localityOrderCheckBox.isSelected());
+        combiner.setMaxLineLength(maxLineLengthSpinner.getValue());
+        combiner.setOutputFormat(outputFormatComboBox.getValue());
+
+        // Task.cancel() marks the task cancelled immediately, before the final checkpoint is written,
+        // so cancellation is requested through a flag and the task finishes normally
+        AtomicBoolean cancelRequested = new AtomicBoolean(false);
+        cancelButton.setOnAction(e -> {
+            cancelRequested.set(true);
+            cancelButton.setDisable(true);
+        });
+
         // Disable UI components during processing
         disableUI(true);
 
         // Create a Task to perform the file combination in the background
-        Set<String> finalActiveExtensions = activeExtensions;
         Task<Void> combineTask = new Task<Void>() {
             @Override
             protected Void call() throws Exception {
-                try (BufferedWriter writer = Files.newBufferedWriter(outputFile.toPath(), charset)) {
-                    int totalItems = fileItems.size();
-                    int processedItems = 0;
-
-                    for (FileItem item : fileItems) {
-                        if (isCancelled()) {
-                            break;
-                        }
-
-                        try {
-                            processFileItem(item, writer, useAbsolutePath, finalActiveExtensions, maxDepth);
-                        } catch (IOException e) {
-                            Platform.runLater(() -> showAlert(Alert.AlertType.ERROR, "Error", "Failed to process: " + item.getPath()));
-                        }
-
-                        processedItems++;
+                // A failure, such as a refused resume, fails the task so setOnFailed reports it
+                combiner.combine(roots, outputFile.toPath(), new FileCombiner.Listener() {
+                    @Override
+                    public void itemProcessed(int processedItems, int totalItems) {
                         updateProgress(processedItems, totalItems);
                     }
-                } catch (IOException e) {
-                    Platform.runLater(() -> showAlert(Alert.AlertType.ERROR, "Error", "Failed to write to output file: " + e.getMessage()));
-                }
+
+                    @Override
+                    public void itemFailed(Path root, IOException e) {
+                        Platform.runLater(() -> showAlert(Alert.AlertType.ERROR, "Error", "Failed to process: " + root));
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return cancelRequested.get();
+                    }
+                });
 
                 return null;
             }
@@ -625,15 +744,30 @@ public class FileCombinerApp extends Application {
         // Bind the progress bar to the task's progress
         progressBar.progressProperty().bind(combineTask.progressProperty());
         progressBar.setVisible(true);
+        cancelButton.setDisable(false);
+        cancelButton.setVisible(true);
 
         combineTask.setOnSucceeded(e -> {
             progressBar.setVisible(false);
+            cancelButton.setVisible(false);
             disableUI(false);
-            showAlert(Alert.AlertType.INFORMATION, "Success", "Files have been combined successfully.");
+            if (cancelRequested.get()) {
+                showAlert(Alert.AlertType.INFORMATION, "Cancelled",
+                        "The combination was cancelled. Combine the same selection into the same file again to resume it.");
+            } else {
+                lastOutputFile = outputFile.toPath();
+                lastOutputCharset = charset;
+                previewButton.setVisible(true);
+                if (activeProfile != null) {
+                    saveProfileSnapshot(activeProfile);
+                }
+                showAlert(Alert.AlertType.INFORMATION, "Success", "Files have been combined successfully.");
+            }
         });
 
         combineTask.setOnFailed(e -> {
             progressBar.setVisible(false);
+            cancelButton.setVisible(false);
             disableUI(false);
             showAlert(Alert.AlertType.ERROR, "Error", "Failed to combine files: " + combineTask.getException().getMessage());
         });
@@ -643,89 +777,263 @@ public class FileCombinerApp extends Application {
     }
 
     /**
-     * Processes a single FileItem, writing its content to the combined file.
+     * Parses a comma-separated extension filter such as {@code .txt,.java}; an empty set means no filter.
      */
-    private void processFileItem(FileItem item, BufferedWriter writer, boolean useAbsolutePath,
-                                 Set<String> activeExtensions, int maxDepth) throws IOException {
-        if (item.getType().equals("File")) {
-            File file = new File(item.getPath());
-            writeFile(writer, file, useAbsolutePath);
-        } else if (item.getType().equals("Folder")) {
-            File folder = new File(item.getPath());
-            processFolder(writer, folder.toPath(), useAbsolutePath, activeExtensions, maxDepth, 0);
+    private Set<String> parseExtensionFilter(String filterText) {
+        if (filterText.isEmpty()) {
+            return new HashSet<>();
         }
+        return Arrays.stream(filterText.split(","))
+                .map(ext -> ext.trim().toLowerCase())
+                .filter(ext -> ext.startsWith("."))
+                .collect(Collectors.toSet());
     }
 
     /**
-     * Recursively processes a folder, writing each file's content to the combined file.
+     * Saves the current selection and settings as a named profile, with a scan snapshot of its roots.
      */
-    private void processFolder(BufferedWriter writer, Path folderPath, boolean useAbsolutePath,
-                               Set<String> activeExtensions, int maxDepth, int currentDepth) throws IOException {
-        if (currentDepth > maxDepth) {
+    private void saveProfile() {
+        if (fileItems.isEmpty()) {
+            showAlert(Alert.AlertType.WARNING, "No Selection", "Please select files or folders to save in a profile.");
             return;
         }
+        TextInputDialog dialog = new TextInputDialog(activeProfile != null ? activeProfile.getName() : "");
+        dialog.setTitle("Save Profile");
+        dialog.setHeaderText(null);
+        dialog.setContentText("Profile name:");
+        Optional<String> name = dialog.showAndWait();
+        if (!name.isPresent() || name.get().trim().isEmpty()) {
+            return; // User cancelled
+        }
 
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folderPath)) {
-            for (Path entry : stream) {
-                if (Files.isDirectory(entry)) {
-                    processFolder(writer, entry, useAbsolutePath, activeExtensions, maxDepth, currentDepth + 1);
-                } else if (Files.isRegularFile(entry) && Files.isReadable(entry)) {
-                    File file = entry.toFile();
-                    if (activeExtensions.isEmpty() || activeExtensions.contains(getFileExtension(file.getName()))) {
-                        writeFile(writer, file, useAbsolutePath);
-                    }
-                }
-            }
+        SelectionProfile profile;
+        try {
+            profile = new SelectionProfile(name.get().trim());
+        } catch (IllegalArgumentException e) {
+            showAlert(Alert.AlertType.WARNING, "Invalid Profile Name", e.getMessage());
+            return;
+        }
+        boolean replacingOther = activeProfile == null || !activeProfile.getName().equals(profile.getName());
+        if (replacingOther && Files.exists(profile.getProfileFile())
+                && !confirmAction("A profile named \"" + profile.getName() + "\" already exists. Do you want to replace it?")) {
+            return;
+        }
+
+        profile.setRoots(fileItems.stream().map(FileItem::getPath).collect(Collectors.toList()));
+        profile.setExtensionFilter(fileTypeFilterField.getText().trim());
+        profile.setMaxDepth(depthSpinner.getValue());
+        profile.setEncoding(encodingComboBox.getValue());
+        profile.setUseAbsolutePath(absolutePathRadio.isSelected());
+        profile.setBaseDirectory(baseDirectory != null ? baseDirectory.getAbsolutePath() : null);
+        profile.setOutputFormat(outputFormatComboBox.getValue());
+        profile.setWriteIndex(writeIndexCheckBox.isSelected());
+        profile.setLocalityOrder(localityOrderCheckBox.isSelected());
+        profile.setMaxLineLength(maxLineLengthSpinner.getValue());
+        try {
+            profile.save();
         } catch (IOException e) {
-            throw new IOException("Failed to process folder: " + folderPath.toString(), e);
+            showAlert(Alert.AlertType.ERROR, "Error", "Failed to save profile: " + e.getMessage());
+            return;
         }
+        activeProfile = profile;
+        // Scanning fills the directory cache, which is then written out as the profile's snapshot
+        refreshSelectionSummary(true);
     }
 
     /**
-     * Writes the content of a file to the combined file with a header.
+     * Opens a saved profile: restores its selection and settings, shows counts from its scan snapshot
+     * straight away, and then validates the snapshot in the background.
      */
-    private void writeFile(BufferedWriter writer, File file, boolean useAbsolutePath) throws IOException {
-        String pathToWrite;
-        if (useAbsolutePath) {
-            pathToWrite = file.getAbsolutePath();
-        } else {
-            Path basePath = baseDirectory.toPath().toAbsolutePath().normalize();
-            Path filePath = file.toPath().toAbsolutePath().normalize();
-            if (!filePath.startsWith(basePath)) {
-                throw new SecurityException("File path " + filePath + " is outside the base directory " + basePath);
+    private void openProfile() {
+        List<String> names;
+        try {
+            names = SelectionProfile.listNames();
+        } catch (IOException e) {
+            showAlert(Alert.AlertType.ERROR, "Error", "Failed to list profiles: " + e.getMessage());
+            return;
+        }
+        if (names.isEmpty()) {
+            showAlert(Alert.AlertType.INFORMATION, "No Profiles", "No saved profiles were found in " + SelectionProfile.profilesDirectory() + ".");
+            return;
+        }
+        ChoiceDialog<String> dialog = new ChoiceDialog<>(activeProfile != null && names.contains(activeProfile.getName())
+                ? activeProfile.getName() : names.get(0), names);
+        dialog.setTitle("Open Profile");
+        dialog.setHeaderText(null);
+        dialog.setContentText("Profile:");
+        Optional<String> name = dialog.showAndWait();
+        if (!name.isPresent()) {
+            return; // User cancelled
+        }
+
+        SelectionProfile profile;
+        try {
+            profile = SelectionProfile.load(name.get());
+        } catch (IOException e) {
+            showAlert(Alert.AlertType.ERROR, "Error", "Failed to open profile: " + e.getMessage());
+            return;
+        }
+        try {
+            profile.loadSnapshot(directoryCache);
+        } catch (IOException e) {
+            // The snapshot is only a cache; without it the roots are scanned cold, and the next save replaces it
+        }
+        applyProfile(profile);
+        activeProfile = profile;
+        refreshSelectionSummary(false);
+    }
+
+    /**
+     * Restores a profile's selection and settings in the UI.
+     */
+    private void applyProfile(SelectionProfile profile) {
+        fileItems.clear();
+        List<String> missing = new ArrayList<>();
+        for (String root : profile.getRoots()) {
+            File file = new File(root);
+            if (file.isDirectory()) {
+                fileItems.add(new FileItem(file.getAbsolutePath(), "Folder"));
+            } else if (FileCombiner.isArchive(file.toPath())) {
+                fileItems.add(new FileItem(file.getAbsolutePath(), "Archive"));
+            } else if (file.isFile()) {
+                fileItems.add(new FileItem(file.getAbsolutePath(), "File"));
+            } else {
+                missing.add(root);
             }
-            pathToWrite = basePath.relativize(filePath).toString();
         }
 
-        writer.write("----- " + pathToWrite + " -----\n");
+        fileTypeFilterField.setText(profile.getExtensionFilter());
+        depthSpinner.getValueFactory().setValue(profile.getMaxDepth());
+        encodingComboBox.setValue(profile.getEncoding());
+        if (profile.getBaseDirectory() != null) {
+            baseDirectory = new File(profile.getBaseDirectory());
+            relativeBaseField.setText(baseDirectory.getAbsolutePath());
+        }
+        if (profile.isUseAbsolutePath()) {
+            absolutePathRadio.setSelected(true);
+        } else {
+            relativePathRadio.setSelected(true);
+        }
+        outputFormatComboBox.setValue(profile.getOutputFormat());
+        writeIndexCheckBox.setSelected(profile.isWriteIndex());
+        localityOrderCheckBox.setSelected(profile.isLocalityOrder());
+        maxLineLengthSpinner.getValueFactory().setValue(profile.getMaxLineLength());
+
+        if (!missing.isEmpty()) {
+            showAlert(Alert.AlertType.WARNING, "Missing Files", "These entries of the profile no longer exist:\n" + String.join("\n", missing));
+        }
+    }
+
+    /**
+     * Shows how many files the selection includes. Counts from the directory cache (such as a loaded
+     * snapshot) appear at once; a background pass then lists again only the directories that changed.
+     */
+    private void refreshSelectionSummary(boolean saveSnapshot) {
+        SelectionProfile profile = activeProfile;
+        List<Path> roots = fileItems.stream()
+                .map(item -> Paths.get(item.getPath()))
+                .collect(Collectors.toList());
+        FileCombiner combiner = new FileCombiner();
+        combiner.setActiveExtensions(parseExtensionFilter(fileTypeFilterField.getText().trim()));
+        combiner.setMaxDepth(depthSpinner.getValue());
+        combiner.setDirectoryCache(directoryCache);
 
-        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                writer.write(line);
-                writer.newLine();
+        try {
+            FileCombiner.Summary cached = combiner.summarize(roots, true);
+            if (cached.getFileCount() > 0) {
+                selectionSummaryLabel.setText(describeSummary(profile, cached) + " (from snapshot, validating...)");
+            } else {
+                selectionSummaryLabel.setText("Profile \"" + profile.getName() + "\": scanning...");
             }
-        } catch (MalformedInputException e) {
-            throw new IOException("Unsupported encoding in file: " + file.getAbsolutePath(), e);
+        } catch (IOException e) {
+            selectionSummaryLabel.setText("Profile \"" + profile.getName() + "\": scanning...");
         }
 
-        writer.write("\n\n");
+        Task<FileCombiner.Summary> scanTask = new Task<FileCombiner.Summary>() {
+            @Override
+            protected FileCombiner.Summary call() throws Exception {
+                FileCombiner.Summary summary = combiner.summarize(roots, false);
+                if (saveSnapshot) {
+                    saveProfileSnapshot(profile);
+                }
+                return summary;
+            }
+        };
+        scanTask.setOnSucceeded(e -> {
+            if (activeProfile == profile) {
+                selectionSummaryLabel.setText(describeSummary(profile, scanTask.getValue()));
+            }
+        });
+        scanTask.setOnFailed(e -> {
+            if (activeProfile == profile) {
+                selectionSummaryLabel.setText("Profile \"" + profile.getName() + "\": scan failed: " + scanTask.getException().getMessage());
+            }
+        });
+        Thread thread = new Thread(scanTask);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Describes a profile's selection. Sizes of unchanged folders come from the snapshot and may be
+     * stale (editing a file does not touch its folder), so the figures are shown as approximate.
+     */
+    private String describeSummary(SelectionProfile profile, FileCombiner.Summary summary) {
+        return "Profile \"" + profile.getName() + "\": about " + summary.getFileCount() + " files, "
+                + String.format("~%.1f MB", summary.getTotalBytes() / (1024.0 * 1024.0))
+                + (summary.isComplete() ? "" : " (some folders could not be read)");
     }
 
     /**
-     * Checks if a file has a supported extension.
+     * Writes a profile's scan snapshot in the background, so the next session starts warm.
      */
-    private boolean isSupportedFile(File file) {
-        String name = file.getName().toLowerCase();
-        return supportedExtensions.contains(getFileExtension(name));
+    private void saveProfileSnapshot(SelectionProfile profile) {
+        snapshotSaver.execute(() -> {
+            try {
+                profile.saveSnapshot(directoryCache);
+            } catch (IOException e) {
+                // The snapshot only speeds up the next session; the next save or combine writes it again
+            }
+        });
+    }
+
+    /**
+     * Lets the user pick a combined file and opens it in the preview window.
+     */
+    private void selectFileToPreview(Stage stage) {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Preview Combined File");
+        if (lastOutputFile != null && lastOutputFile.getParent() != null) {
+            fileChooser.setInitialDirectory(lastOutputFile.getParent().toFile());
+        }
+        File file = fileChooser.showOpenDialog(stage);
+        if (file == null) {
+            return; // User cancelled
+        }
+        try {
+            openPreview(stage, file.toPath(), Charset.forName(encodingComboBox.getValue()));
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            showAlert(Alert.AlertType.ERROR, "Unsupported Encoding", "The selected encoding is not supported.");
+        }
+    }
+
+    /**
+     * Opens a combined file in the preview window.
+     */
+    private void openPreview(Stage stage, Path file, Charset charset) {
+        try {
+            PreviewWindow.show(stage, file, charset);
+        } catch (IOException e) {
+            showAlert(Alert.AlertType.ERROR, "Error", "Failed to open preview: " + e.getMessage());
+        }
     }
 
     /**
-     * Extracts the file extension from a file name.
+     * Checks if a file has a supported extension.
      */
-    private String getFileExtension(String fileName) {
-        int index = fileName.lastIndexOf('.');
-        return index > 0 ? fileName.substring(index) : "";
+    private boolean isSupportedFile(File file) {
+        String name = file.getName().toLowerCase();
+        return supportedExtensions.contains(FileCombiner.getFileExtension(name));
     }
 
     /**
@@ -761,6 +1069,7 @@ public class FileCombinerApp extends Application {
         tableView.setDisable(disable);
         menuBar.setDisable(disable);
         combineButton.setDisable(disable);
+        previewButton.setDisable(disable);
         selectFilesButton.setDisable(disable);
         selectFoldersButton.setDisable(disable);
         clearSelectionButton.setDisable(disable);
@@ -769,8 +1078,12 @@ public class FileCombinerApp extends Application {
         relativeBaseField.setDisable(disable || !relativePathRadio.isSelected());
         selectBaseButton.setDisable(disable || !relativePathRadio.isSelected());
         encodingComboBox.setDisable(disable);
+        outputFormatComboBox.setDisable(disable);
         fileTypeFilterField.setDisable(disable);
         depthSpinner.setDisable(disable);
+        writeIndexCheckBox.setDisable(disable);
+        localityOrderCheckBox.setDisable(disable);
+        maxLineLengthSpinner.setDisable(disable);
     }
 
     /**
@@ -779,14 +1092,16 @@ public class FileCombinerApp extends Application {
     private void showHowToUseDialog() {
         String instructions = "### How to Use File Combiner App\n\n" +
                 "1. **Select Files:** Click on the 'Select Files' button to choose individual files you want to combine.\n" +
-                "2. **Select Folders:** Click on the 'Select Folders' button to choose folders. All readable files within these folders (up to the specified recursive depth) will be included.\n" +
+                "2. **Select Folders:** Click on the 'Select Folders' button to choose folders. All readable files within these folders (up to the specified recursive depth) will be included. Zip and jar archives can be selected like files and are read in place, without extraction.\n" +
                 "3. **File Type Filter:** Specify the file extensions to include (e.g., `.txt,.java`). If left empty, all supported file types will be included.\n" +
                 "4. **Path Representation:** Choose between 'Absolute Path' and 'Relative Path'. For relative paths, select a base directory.\n" +
-                "5. **Encoding:** Select the desired encoding for reading and writing files.\n" +
+                "5. **Encoding:** Select the desired encoding for reading and writing files, and the output format (plain text, JSON Lines, Markdown or length-prefixed).\n" +
                 "6. **Recursive Depth:** Set how deep the application should traverse subfolders.\n" +
-                "7. **Combine Files:** Click the 'Combine Files' button to start the process. A progress bar will indicate the progress.\n" +
+                "   Tick 'Write section index' to save a .toc file next to the output so single files can be extracted with --extract or --split.\n" +
+                "7. **Combine Files:** Click the 'Combine Files' button to start the process. A progress bar will indicate the progress, and 'Cancel' stops after the current file. A cancelled or interrupted run is offered for resuming the next time you combine into the same file. 'Preview Output' (or File > Preview Combined File) pages through the result, however large, with section jumps and search.\n" +
                 "8. **Drag and Drop:** You can also drag and drop files or folders directly into the application window.\n" +
-                "9. **Clear Selection:** Click the 'Clear Selection' button to remove all selected files and folders.\n\n" +
+                "9. **Clear Selection:** Click the 'Clear Selection' button to remove all selected files and folders.\n" +
+                "10. **Profiles:** Use File > Save Profile to keep the selection and settings, and File > Open Profile to restore them together with the last scan.\n\n" +
                 "### Notes:\n" +
                 "- Ensure you have read permissions for all selected files and folders.\n" +
                 "- The output file will contain headers indicating the source of each combined section.\n" +
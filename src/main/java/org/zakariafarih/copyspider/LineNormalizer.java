@@ -0,0 +1,117 @@
+package org.zakariafarih.copyspider;
+
+import java.io.*;
+
+/**
+ * Copies text fed in chunks while normalizing line endings ({@code \r\n}, {@code \r} and
+ * {@code \n}) to the platform separator, with the same result as copying {@link BufferedReader#readLine()}
+ * lines. Line endings split across chunk boundaries are handled, so memory use per file is constant
+ * whatever the line length. Over-long lines can optionally be cut, with a marker in place of the rest.
+ */
+public class LineNormalizer {
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final int maxLineLength;
+
+    // State of the line being copied
+    private boolean pendingCarriageReturn;
+    private boolean lineStarted;
+    private long lineLength;
+    private long omitted;
+
+    /**
+     * Creates a normalizer that cuts lines after {@code maxLineLength} characters, or never if it is 0.
+     */
+    public LineNormalizer(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Returns the marker written in place of the omitted part of a truncated line.
+     */
+    public static String truncationMarker(long omitted) {
+        return " [... line truncated, " + omitted + " characters omitted]";
+    }
+
+    /**
+     * Starts a new text that is then fed in chunks through {@link #write} and finished with {@link #end}.
+     * The caller owns the chunks, so one decoded chunk can be shared by several normalizers.
+     */
+    public void begin() {
+        pendingCarriageReturn = false;
+        lineStarted = false;
+        lineLength = 0;
+        omitted = 0;
+    }
+
+    /**
+     * Copies the first {@code length} characters of a chunk. The chunk is not modified or kept.
+     */
+    public void write(char[] chars, int length, Writer out) throws IOException {
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (pendingCarriageReturn) {
+                pendingCarriageReturn = false;
+                if (c == '\n') {
+                    // Second half of a \r\n, possibly at the start of a new chunk
+                    start = i + 1;
+                    continue;
+                }
+            }
+            if (c == '\n' || c == '\r') {
+                writeRun(chars, out, start, i);
+                endLine(out);
+                pendingCarriageReturn = c == '\r';
+                start = i + 1;
+            }
+        }
+        writeRun(chars, out, start, length);
+    }
+
+    /**
+     * Ends the text, ending its last line with a separator.
+     */
+    public void end(Writer out) throws IOException {
+        if (lineStarted) {
+            endLine(out);
+        }
+    }
+
+    /**
+     * Writes part of the current line, honoring the line length cap.
+     */
+    private void writeRun(char[] chars, Writer out, int from, int to) throws IOException {
+        int length = to - from;
+        if (length == 0) {
+            return;
+        }
+        lineStarted = true;
+
+        int keep = length;
+        if (maxLineLength > 0) {
+            keep = (int) Math.max(0, Math.min(length, maxLineLength - lineLength));
+            // Never cut between the two halves of a surrogate pair, including at a chunk boundary
+            boolean cut = keep < length || lineLength + keep >= maxLineLength;
+            if (keep > 0 && cut && Character.isHighSurrogate(chars[from + keep - 1])) {
+                keep--;
+            }
+        }
+        if (keep > 0) {
+            out.write(chars, from, keep);
+        }
+        lineLength += length;
+        omitted += length - keep;
+    }
+
+    private void endLine(Writer out) throws IOException {
+        if (omitted > 0) {
+            out.write(truncationMarker(omitted));
+        }
+        out.write(LINE_SEPARATOR);
+        lineStarted = false;
+        lineLength = 0;
+        omitted = 0;
+    }
+}
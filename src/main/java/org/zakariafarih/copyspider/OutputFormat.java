@@ -0,0 +1,65 @@
+package org.zakariafarih.copyspider;
+
+import java.util.Locale;
+
+/**
+ * The layouts a combined file can be written in.
+ */
+public enum OutputFormat {
+    /**
+     * Each file's content under a {@code ----- path -----} header.
+     */
+    PLAIN("Plain text", "combined.txt"),
+    /**
+     * One JSON object per line: {@code {"path":"...","content":"..."}}.
+     */
+    JSONL("JSON Lines", "combined.jsonl"),
+    /**
+     * A heading per file followed by a fenced code block tagged with the file's language.
+     */
+    MARKDOWN("Markdown", "combined.md"),
+    /**
+     * Netstring-style records: {@code <path bytes>:<path> <content bytes>\n<content>\n}.
+     */
+    LENGTH_PREFIXED("Length-prefixed", "combined.lp");
+
+    private final String displayName;
+    private final String defaultFileName;
+
+    OutputFormat(String displayName, String defaultFileName) {
+        this.displayName = displayName;
+        this.defaultFileName = defaultFileName;
+    }
+
+    public String getDefaultFileName() {
+        return defaultFileName;
+    }
+
+    /**
+     * Creates the formatter that writes section framing for this format.
+     */
+    public SectionFormatter newFormatter() {
+        switch (this) {
+            case JSONL:
+                return new SectionFormatter.JsonLines();
+            case MARKDOWN:
+                return new SectionFormatter.Markdown();
+            case LENGTH_PREFIXED:
+                return new SectionFormatter.LengthPrefixed();
+            default:
+                return new SectionFormatter.Plain();
+        }
+    }
+
+    /**
+     * Parses a format name such as {@code jsonl} or {@code length-prefixed}.
+     */
+    public static OutputFormat fromName(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+
+    @Override
+    public String toString() {
+        return displayName;
+    }
+}
@@ -0,0 +1,334 @@
+package org.zakariafarih.copyspider;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+
+/**
+ * Line-oriented random access to a combined file of any size, for the preview pane. The file is read
+ * through memory-mapped windows, and lines are located through a sparse index instead of a table of
+ * every line, so heap use stays small and nearly constant whatever the size of the file.
+ *
+ * <p>The index holds a checkpoint (line number and byte offset of a line start) every
+ * {@value #LINES_PER_CHECKPOINT} lines, and sooner if that many lines span more than
+ * {@value #BYTES_PER_CHECKPOINT} bytes. Reaching any line therefore scans at most about that many bytes.
+ * The index is built by {@link #indexLines(LongConsumer)} on a background thread, and lines become
+ * readable as soon as the scan has passed them.
+ */
+public class OutputPager implements Closeable {
+
+    private static final int LINES_PER_CHECKPOINT = 256;
+    private static final int BYTES_PER_CHECKPOINT = 64 * 1024;
+    private static final long SCAN_WINDOW_SIZE = 64L * 1024 * 1024;
+    private static final long READ_WINDOW_SIZE = 4L * 1024 * 1024;
+
+    private final Path file;
+    private final Charset charset;
+    private final FileChannel channel;
+    private final long size;
+
+    // Published by the indexing thread: the arrays are replaced, never shrunk, before the count is raised
+    private volatile long[] checkpointLines = new long[1024];
+    private volatile long[] checkpointOffsets = new long[1024];
+    private volatile int checkpointCount;
+    private volatile long indexedLines;
+    private volatile long indexedBytes;
+    private volatile boolean indexed;
+    private volatile boolean closed;
+
+    // The furthest position a lineAt call counted to, so repeated calls within one long line
+    // (such as Find Next inside a huge JSON Lines record) resume there instead of rescanning
+    private volatile LinePosition lastLineAt = new LinePosition(0, 0);
+
+    // Window used by the reading thread
+    private MappedByteBuffer readWindow;
+    private long readWindowStart;
+
+    /**
+     * Opens a combined file; lines are decoded in the given charset.
+     */
+    public OutputPager(Path file, Charset charset) throws IOException {
+        this.file = file;
+        this.charset = charset;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of lines whose start is known so far.
+     */
+    public long getLineCount() {
+        return indexedLines;
+    }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Scans the whole file once, building the line index. Progress is reported with the number of
+     * lines found so far. Returns early if the pager is closed.
+     */
+    public void indexLines(LongConsumer progress) throws IOException {
+        long lines = 0;
+        long lastCheckpointLine = 0;
+        long lastCheckpointOffset = 0;
+        boolean atLineStart = true;
+        addCheckpoint(0, 0);
+
+        for (long windowStart = 0; windowStart < size && !closed; windowStart += SCAN_WINDOW_SIZE) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(SCAN_WINDOW_SIZE, size - windowStart));
+            int limit = window.limit();
+            for (int i = 0; i < limit; i++) {
+                if (atLineStart) {
+                    long offset = windowStart + i;
+                    if (lines - lastCheckpointLine >= LINES_PER_CHECKPOINT || offset - lastCheckpointOffset >= BYTES_PER_CHECKPOINT) {
+                        addCheckpoint(lines, offset);
+                        lastCheckpointLine = lines;
+                        lastCheckpointOffset = offset;
+                    }
+                    atLineStart = false;
+                }
+                if (window.get(i) == '\n') {
+                    lines++;
+                    atLineStart = true;
+                }
+            }
+            publish(lines, windowStart + limit);
+            progress.accept(lines);
+        }
+
+        if (!closed) {
+            // A last line without a line break still counts
+            publish(atLineStart ? lines : lines + 1, size);
+            indexed = true;
+            progress.accept(indexedLines);
+        }
+    }
+
+    private void addCheckpoint(long line, long offset) {
+        int count = checkpointCount;
+        if (count == checkpointLines.length) {
+            checkpointLines = Arrays.copyOf(checkpointLines, count * 2);
+            checkpointOffsets = Arrays.copyOf(checkpointOffsets, count * 2);
+        }
+        checkpointLines[count] = line;
+        checkpointOffsets[count] = offset;
+        checkpointCount = count + 1;
+    }
+
+    private synchronized void publish(long lines, long bytes) {
+        indexedLines = lines;
+        indexedBytes = bytes;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the index covers the given byte offset, or the pager is closed.
+     */
+    public synchronized void awaitIndexed(long offset) throws InterruptedException {
+        while (!closed && !indexed && indexedBytes <= offset) {
+            wait();
+        }
+    }
+
+    /**
+     * Returns the byte offset at which a line starts.
+     */
+    public synchronized long lineOffset(long line) throws IOException {
+        if (line < 0 || line >= indexedLines) {
+            throw new IndexOutOfBoundsException("Line " + line + " is not indexed yet");
+        }
+        int checkpoint = checkpointForLine(line);
+        long offset = checkpointOffsets[checkpoint];
+        for (long skip = line - checkpointLines[checkpoint]; skip > 0; skip--) {
+            offset = lineEnd(offset) + 1;
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the line that contains the given byte offset. Not synchronized: the scan from the nearest
+     * checkpoint can cover a whole long line, and must not hold up {@link #readLine} on the UI thread.
+     */
+    public long lineAt(long offset) throws IOException {
+        if (offset < 0 || offset > indexedBytes) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " is not indexed yet");
+        }
+        // The count is read before the arrays, which are replaced before the count is raised
+        int count = checkpointCount;
+        long[] offsets = checkpointOffsets;
+        int index = Arrays.binarySearch(offsets, 0, count, offset);
+        int checkpoint = index >= 0 ? index : -index - 2;
+        LinePosition start = new LinePosition(offsets[checkpoint], checkpointLines[checkpoint]);
+        LinePosition last = lastLineAt;
+        if (last.offset > start.offset && last.offset <= offset) {
+            start = last;
+        }
+
+        long line = start.line + countLineBreaks(start.offset, offset);
+        lastLineAt = new LinePosition(offset, line);
+        return line;
+    }
+
+    /**
+     * Counts the line breaks between two offsets through mapped windows of its own, a block at a time.
+     */
+    private long countLineBreaks(long from, long to) throws IOException {
+        long breaks = 0;
+        byte[] block = new byte[64 * 1024];
+        for (long windowStart = from; windowStart < to; windowStart += SCAN_WINDOW_SIZE) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(SCAN_WINDOW_SIZE, to - windowStart));
+            while (window.hasRemaining()) {
+                int length = Math.min(block.length, window.remaining());
+                window.get(block, 0, length);
+                for (int i = 0; i < length; i++) {
+                    if (block[i] == '\n') {
+                        breaks++;
+                    }
+                }
+            }
+        }
+        return breaks;
+    }
+
+    /**
+     * Reads a line without its line break. Lines longer than {@code maxChars} are cut and end with an ellipsis.
+     */
+    public synchronized String readLine(long line, int maxChars) throws IOException {
+        long start = lineOffset(line);
+        // A character takes at most four bytes in the charsets offered for output
+        long limit = Math.min(size, start + (long) maxChars * 4 + 4);
+        long end = start;
+        while (end < limit && byteAt(end) != '\n') {
+            end++;
+        }
+        boolean cut = end == limit && end < size && byteAt(end) != '\n';
+        if (!cut && end > start && byteAt(end - 1) == '\r') {
+            end--;
+        }
+
+        byte[] bytes = new byte[(int) (end - start)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = byteAt(start + i);
+        }
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        String text = decoder.decode(ByteBuffer.wrap(bytes)).toString();
+        if (cut || text.length() > maxChars) {
+            int keep = Math.min(text.length(), maxChars);
+            if (keep > 0 && Character.isHighSurrogate(text.charAt(keep - 1))) {
+                keep--;
+            }
+            return text.substring(0, keep) + " \u2026";
+        }
+        return text;
+    }
+
+    /**
+     * Finds the next occurrence of the pattern at or after {@code fromOffset} and returns its byte
+     * offset, or -1 if there is none or the search was cancelled.
+     */
+    public long find(byte[] pattern, long fromOffset, BooleanSupplier cancelled) throws IOException {
+        if (pattern.length == 0) {
+            return -1;
+        }
+        // Consecutive windows overlap so matches across a window boundary are found
+        long step = SCAN_WINDOW_SIZE - pattern.length + 1;
+        for (long windowStart = Math.max(0, fromOffset); windowStart + pattern.length <= size; windowStart += step) {
+            if (closed || cancelled.getAsBoolean()) {
+                return -1;
+            }
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(SCAN_WINDOW_SIZE, size - windowStart));
+            int last = window.limit() - pattern.length;
+            byte first = pattern[0];
+            for (int i = 0; i <= last; i++) {
+                if (window.get(i) != first) {
+                    continue;
+                }
+                int matched = 1;
+                while (matched < pattern.length && window.get(i + matched) == pattern[matched]) {
+                    matched++;
+                }
+                if (matched == pattern.length) {
+                    return windowStart + i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Encodes search text the way it appears in the file.
+     */
+    public byte[] encode(String text) throws CharacterCodingException {
+        ByteBuffer encoded = charset.newEncoder().encode(CharBuffer.wrap(text));
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (this) {
+            notifyAll();
+        }
+        channel.close();
+    }
+
+    private int checkpointForLine(long line) {
+        int count = checkpointCount;
+        int index = Arrays.binarySearch(checkpointLines, 0, count, line);
+        // Several checkpoints never share a line, so an exact match is the checkpoint itself
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * Returns the offset of the line break ending the line that starts at {@code offset}, or the file size.
+     */
+    private long lineEnd(long offset) throws IOException {
+        long position = offset;
+        while (position < size && byteAt(position) != '\n') {
+            position++;
+        }
+        return position;
+    }
+
+    private byte byteAt(long position) throws IOException {
+        if (readWindow == null || position < readWindowStart || position >= readWindowStart + readWindow.limit()) {
+            readWindowStart = position - position % READ_WINDOW_SIZE;
+            readWindow = channel.map(FileChannel.MapMode.READ_ONLY, readWindowStart, Math.min(READ_WINDOW_SIZE, size - readWindowStart));
+        }
+        return readWindow.get((int) (position - readWindowStart));
+    }
+
+    /**
+     * A line number and a byte offset on that line; the line is the number of line breaks before the offset.
+     */
+    private static class LinePosition {
+        private final long offset;
+        private final long line;
+
+        LinePosition(long offset, long line) {
+            this.offset = offset;
+            this.line = line;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package org.zakariafarih.copyspider;
+
+import javafx.application.Platform;
+import javafx.collections.ObservableListBase;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.Scene;
+import javafx.scene.control.*;
+import javafx.scene.layout.*;
+import javafx.stage.Stage;
+import javafx.stage.Window;
+import javafx.util.StringConverter;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Preview window that pages through a combined file of any size. The list is virtualized: its items
+ * are just line numbers, and only the visible lines are read, through the memory-mapped
+ * {@link OutputPager}. Line indexing and searching run on background threads.
+ */
+public class PreviewWindow {
+
+    // Longer lines (e.g. whole files in JSON Lines output) are cut for display
+    private static final int MAX_LINE_CHARS = 2000;
+
+    private final OutputPager pager;
+    private final Stage stage = new Stage();
+    private final LineList lines = new LineList();
+    private final ListView<Integer> listView = new ListView<>(lines);
+    private final ComboBox<SectionIndex.Section> sectionComboBox = new ComboBox<>();
+    private final TextField searchField = new TextField();
+    private final Label statusLabel = new Label();
+
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(daemonThreads("preview-indexer"));
+    private final ExecutorService searcher = Executors.newSingleThreadExecutor(daemonThreads("preview-search"));
+    private final AtomicBoolean growPending = new AtomicBoolean();
+    private AtomicBoolean searchCancelled;
+    private long lastMatchOffset = -1;
+
+    /**
+     * Opens a preview of a combined file. The charset recorded in its section index, if there is one,
+     * takes precedence over the given charset.
+     */
+    public static void show(Window owner, Path file, Charset charset) throws IOException {
+        SectionIndex index = null;
+        Path indexFile = SectionIndex.indexPathFor(file);
+        if (Files.exists(indexFile)) {
+            index = SectionIndex.read(indexFile);
+            try {
+                charset = Charset.forName(index.getCharset());
+            } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                throw new IOException("Unsupported charset in section index: " + index.getCharset(), e);
+            }
+        }
+        new PreviewWindow(owner, new OutputPager(file, charset), index).start();
+    }
+
+    private PreviewWindow(Window owner, OutputPager pager, SectionIndex index) {
+        this.pager = pager;
+
+        stage.initOwner(owner);
+        stage.setTitle("Preview - " + pager.getFile().getFileName());
+
+        listView.setFixedCellSize(22);
+        listView.setStyle("-fx-font-family: 'monospace';");
+        listView.setPlaceholder(new Label("Loading..."));
+        listView.setCellFactory(view -> new ListCell<Integer>() {
+            @Override
+            protected void updateItem(Integer line, boolean empty) {
+                super.updateItem(line, empty);
+                setText(empty || line == null ? null : readLine(line));
+            }
+        });
+
+        // Section navigation, available when the output has a section index
+        Label sectionLabel = new Label("Jump to:");
+        sectionComboBox.setPrefWidth(350);
+        sectionComboBox.setConverter(new StringConverter<SectionIndex.Section>() {
+            @Override
+            public String toString(SectionIndex.Section section) {
+                return section == null ? null : section.getPath();
+            }
+
+            @Override
+            public SectionIndex.Section fromString(String path) {
+                return null;
+            }
+        });
+        if (index != null) {
+            sectionComboBox.getItems().addAll(index.getSections());
+            sectionComboBox.setOnAction(e -> {
+                SectionIndex.Section section = sectionComboBox.getValue();
+                if (section != null) {
+                    jumpToOffset(section.getOffset());
+                }
+            });
+        } else {
+            sectionComboBox.setDisable(true);
+            sectionComboBox.setTooltip(new Tooltip("Write a section index when combining to jump between files"));
+        }
+
+        // Incremental search
+        Label searchLabel = new Label("Find:");
+        searchField.setPromptText("Search text");
+        searchField.setPrefWidth(250);
+        searchField.textProperty().addListener((observable, oldText, newText) -> {
+            if (newText.isEmpty()) {
+                cancelSearch();
+                lastMatchOffset = -1;
+                statusLabel.setText(describeFile());
+            } else {
+                startSearch(lastMatchOffset >= 0 ? lastMatchOffset : selectedOffset());
+            }
+        });
+        searchField.setOnAction(e -> findNext());
+        Button findNextButton = new Button("Find Next");
+        findNextButton.setOnAction(e -> findNext());
+
+        HBox toolBar = new HBox(10, sectionLabel, sectionComboBox, searchLabel, searchField, findNextButton);
+        toolBar.setAlignment(Pos.CENTER_LEFT);
+        toolBar.setPadding(new Insets(0, 0, 10, 0));
+
+        statusLabel.setPadding(new Insets(10, 0, 0, 0));
+
+        BorderPane root = new BorderPane();
+        root.setPadding(new Insets(10));
+        root.setTop(toolBar);
+        root.setCenter(listView);
+        root.setBottom(statusLabel);
+        root.setStyle("-fx-font-family: 'Arial'; -fx-font-size: 14px;");
+
+        Scene scene = new Scene(root, 1000, 700);
+        scene.getStylesheets().add(PreviewWindow.class.getResource("styles/styles.css").toExternalForm());
+        stage.setScene(scene);
+        stage.setOnHidden(e -> close());
+    }
+
+    private void start() {
+        statusLabel.setText("Indexing lines...");
+        indexer.execute(() -> {
+            try {
+                pager.indexLines(lineCount -> scheduleGrow());
+                Platform.runLater(() -> {
+                    lines.grow(pager.getLineCount());
+                    listView.setPlaceholder(new Label("The file is empty"));
+                    if (searchField.getText().isEmpty()) {
+                        statusLabel.setText(describeFile());
+                    }
+                });
+            } catch (IOException e) {
+                Platform.runLater(() -> statusLabel.setText("Failed to read " + pager.getFile() + ": " + e.getMessage()));
+            }
+        });
+        stage.show();
+    }
+
+    /**
+     * Adds newly indexed lines to the list, coalescing updates from the indexing thread.
+     */
+    private void scheduleGrow() {
+        if (growPending.compareAndSet(false, true)) {
+            Platform.runLater(() -> {
+                growPending.set(false);
+                lines.grow(pager.getLineCount());
+                if (!pager.isIndexed() && searchField.getText().isEmpty()) {
+                    statusLabel.setText("Indexing lines... " + pager.getLineCount());
+                }
+            });
+        }
+    }
+
+    private String readLine(int line) {
+        try {
+            return pager.readLine(line, MAX_LINE_CHARS);
+        } catch (IOException e) {
+            return "[unreadable: " + e.getMessage() + "]";
+        }
+    }
+
+    private String describeFile() {
+        return pager.getLineCount() + " lines, " + pager.getSize() + " bytes";
+    }
+
+    /**
+     * Returns the byte offset of the selected line, or 0.
+     */
+    private long selectedOffset() {
+        int selected = listView.getSelectionModel().getSelectedIndex();
+        if (selected < 0) {
+            return 0;
+        }
+        try {
+            return pager.lineOffset(selected);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void findNext() {
+        if (!searchField.getText().isEmpty()) {
+            startSearch(lastMatchOffset >= 0 ? lastMatchOffset + 1 : selectedOffset());
+        }
+    }
+
+    /**
+     * Searches for the current text from the given offset on the search thread, wrapping around once.
+     * A new search cancels the previous one.
+     */
+    private void startSearch(long fromOffset) {
+        cancelSearch();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        searchCancelled = cancelled;
+        String text = searchField.getText();
+        statusLabel.setText("Searching...");
+
+        // Cancellation uses a flag: interrupting a thread inside a FileChannel operation closes the channel
+        searcher.execute(() -> {
+            try {
+                byte[] pattern = pager.encode(text);
+                long match = pager.find(pattern, fromOffset, cancelled::get);
+                boolean wrapped = false;
+                if (match < 0 && fromOffset > 0 && !cancelled.get()) {
+                    match = pager.find(pattern, 0, cancelled::get);
+                    wrapped = true;
+                }
+                if (cancelled.get()) {
+                    return;
+                }
+                if (match < 0) {
+                    Platform.runLater(() -> {
+                        if (!cancelled.get()) {
+                            statusLabel.setText("Not found: " + text);
+                        }
+                    });
+                    return;
+                }
+                pager.awaitIndexed(match);
+                long line = pager.lineAt(match);
+                long matchOffset = match;
+                String wrapNote = wrapped ? " (search wrapped to the start)" : "";
+                Platform.runLater(() -> {
+                    if (!cancelled.get()) {
+                        lastMatchOffset = matchOffset;
+                        showLine(line);
+                        statusLabel.setText("Match at line " + (line + 1) + wrapNote);
+                    }
+                });
+            } catch (CharacterCodingException e) {
+                Platform.runLater(() -> statusLabel.setText("The search text cannot be encoded in the file's charset"));
+            } catch (IOException e) {
+                Platform.runLater(() -> statusLabel.setText("Search failed: " + e.getMessage()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    private void cancelSearch() {
+        if (searchCancelled != null) {
+            searchCancelled.set(true);
+        }
+    }
+
+    /**
+     * Scrolls to the line containing a byte offset once the index has reached it.
+     */
+    private void jumpToOffset(long offset) {
+        cancelSearch();
+        searcher.execute(() -> {
+            try {
+                pager.awaitIndexed(offset);
+                long line = pager.lineAt(offset);
+                Platform.runLater(() -> showLine(line));
+            } catch (IOException e) {
+                Platform.runLater(() -> statusLabel.setText("Failed to read " + pager.getFile() + ": " + e.getMessage()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    private void showLine(long line) {
+        int index = (int) Math.min(line, Integer.MAX_VALUE);
+        lines.grow(pager.getLineCount());
+        listView.getSelectionModel().select(index);
+        // Keep a little context above the line
+        listView.scrollTo(Math.max(0, index - 3));
+    }
+
+    private void close() {
+        cancelSearch();
+        indexer.shutdownNow();
+        searcher.shutdownNow();
+        try {
+            pager.close();
+        } catch (IOException e) {
+            // Nothing was written, so there is nothing to lose
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * The list's items: line numbers, generated on demand instead of stored.
+     */
+    private static class LineList extends ObservableListBase<Integer> {
+        private int size;
+
+        @Override
+        public Integer get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Line " + index + " of " + size);
+            }
+            return index;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Extends the list to the given number of lines; it never shrinks.
+         */
+        void grow(long lineCount) {
+            int newSize = (int) Math.min(lineCount, Integer.MAX_VALUE);
+            if (newSize > size) {
+                beginChange();
+                nextAdd(size, newSize);
+                size = newSize;
+                endChange();
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package org.zakariafarih.copyspider;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads a directory's files ahead of the writer in physical order (by inode where the file system
+ * exposes one) to cut seeks on spinning disks and overlap round trips on network mounts. The
+ * writer still consumes the files in their normal order; prefetched contents wait in a reorder
+ * buffer whose total size is bounded.
+ *
+ * <p>The readers never block: when the buffer is full, or a file is larger than its listing said,
+ * they leave that file for the writer to stream itself. The writer in turn waits for a file that is
+ * still queued or being read instead of reading it out of order, so the disk only ever sees the
+ * physical order. Since every queued file is eventually handled without waiting, this cannot deadlock
+ * however the physical and output orders differ.
+ *
+ * <p>Listed sizes may be stale (a growing file does not change its directory, and listings persist
+ * across sessions), so they are only used to reserve buffer space, and no more than that is ever read.
+ */
+public class ReadAheadScheduler implements Closeable {
+
+    // Larger files are streamed by the writer instead of being buffered whole
+    private static final long MAX_PREFETCH_FILE_SIZE = 4L * 1024 * 1024;
+    private static final int BUFFER_BUDGET_BYTES = 64 * 1024 * 1024;
+    private static final Pattern INODE_PATTERN = Pattern.compile("ino=(\\d+)");
+
+    private final ExecutorService readers;
+    private final Semaphore budget = new Semaphore(BUFFER_BUDGET_BYTES);
+
+    /**
+     * Creates a scheduler with the given number of read-ahead threads.
+     */
+    public ReadAheadScheduler(int threads) {
+        AtomicLong counter = new AtomicLong();
+        readers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "read-ahead-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts reading the given files, in output order, ahead of the writer in physical order.
+     */
+    public Batch schedule(List<DirectoryCache.Entry> files) {
+        List<Slot> slots = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            DirectoryCache.Entry entry = files.get(i);
+            if (entry.getSize() <= MAX_PREFETCH_FILE_SIZE) {
+                slots.add(new Slot(entry, i));
+            }
+        }
+        Batch batch = new Batch(slots);
+        slots.sort(Comparator.comparingLong((Slot slot) -> slot.physicalKey).thenComparingInt(slot -> slot.outputIndex));
+        slots.forEach(readers::execute);
+        return batch;
+    }
+
+    @Override
+    public void close() {
+        readers.shutdownNow();
+    }
+
+    /**
+     * Returns the inode number from a file key such as {@code (dev=803,ino=1234)}, or -1 if there is none.
+     */
+    static long inodeOf(Object fileKey) {
+        if (fileKey == null) {
+            return -1;
+        }
+        Matcher matcher = INODE_PATTERN.matcher(fileKey.toString());
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    /**
+     * The prefetched files of one directory.
+     */
+    public class Batch implements Closeable {
+        private final Map<Path, Slot> slotsByPath = new HashMap<>();
+
+        Batch(List<Slot> slots) {
+            for (Slot slot : slots) {
+                slotsByPath.put(slot.entry.getPath(), slot);
+            }
+        }
+
+        /**
+         * Returns a file's prefetched content, or null if the caller must read the file itself.
+         */
+        public byte[] take(Path file) throws InterruptedIOException {
+            Slot slot = slotsByPath.remove(file);
+            if (slot == null) {
+                return null;
+            }
+            try {
+                return slot.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for read-ahead of " + file);
+            }
+        }
+
+        /**
+         * Abandons the files that were not taken and returns their buffer space.
+         */
+        @Override
+        public void close() {
+            slotsByPath.values().forEach(Slot::abandon);
+            slotsByPath.clear();
+        }
+    }
+
+    private enum State { QUEUED, READING, READ, TAKEN }
+
+    /**
+     * One file in the reorder buffer.
+     */
+    private class Slot implements Runnable {
+        private final DirectoryCache.Entry entry;
+        private final int outputIndex;
+        // Files without an inode keep their directory order, ahead of those that have one
+        private final long physicalKey;
+
+        private State state = State.QUEUED;
+        private byte[] content;
+        private int permits;
+
+        Slot(DirectoryCache.Entry entry, int outputIndex) {
+            this.entry = entry;
+            this.outputIndex = outputIndex;
+            this.physicalKey = inodeOf(entry.getFileKey());
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (state != State.QUEUED) {
+                    return;
+                }
+                state = State.READING;
+            }
+
+            // Slots are only created for files listed at up to MAX_PREFETCH_FILE_SIZE
+            int size = (int) entry.getSize();
+            byte[] bytes = null;
+            if (budget.tryAcquire(size)) {
+                try {
+                    bytes = read(entry.getPath(), size);
+                } catch (IOException | RuntimeException e) {
+                    // The writer reads the file itself and reports the error in context
+                } finally {
+                    if (bytes == null) {
+                        budget.release(size);
+                    }
+                }
+            }
+
+            synchronized (this) {
+                if (state == State.TAKEN) {
+                    // Abandoned while reading
+                    if (bytes != null) {
+                        budget.release(size);
+                    }
+                } else {
+                    content = bytes;
+                    permits = bytes != null ? size : 0;
+                    state = State.READ;
+                }
+                notifyAll();
+            }
+        }
+
+        /**
+         * Reads a file of the given listed size, or returns null if it has grown since it was listed.
+         */
+        private byte[] read(Path file, int size) throws IOException {
+            try (InputStream in = Files.newInputStream(file)) {
+                byte[] bytes = in.readNBytes(size + 1);
+                return bytes.length > size ? null : bytes;
+            }
+        }
+
+        synchronized byte[] take() throws InterruptedException {
+            // Wait for the readers rather than reading the file out of physical order
+            while (state == State.QUEUED || state == State.READING) {
+                wait();
+            }
+            byte[] bytes = content;
+            release();
+            return bytes;
+        }
+
+        synchronized void abandon() {
+            release();
+        }
+
+        private void release() {
+            budget.release(permits);
+            permits = 0;
+            content = null;
+            state = State.TAKEN;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package org.zakariafarih.copyspider;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Writes the framing around each file's content for an {@link OutputFormat}. Content is never
+ * buffered: {@link #beginSection} returns the writer it must be streamed into, which escapes on
+ * the fly where the format needs it.
+ */
+public abstract class SectionFormatter {
+
+    /**
+     * Writes the section header and returns the writer the content goes to.
+     *
+     * @param longestBacktickRun the longest run of backticks in the content, if {@link #needsBacktickScan()}
+     */
+    public abstract Writer beginSection(CombinedWriter out, String path, int longestBacktickRun) throws IOException;
+
+    /**
+     * Writes the section footer once the content has been streamed.
+     */
+    public abstract void endSection(CombinedWriter out, long contentOffset, long contentLength) throws IOException;
+
+    /**
+     * Checks if the formatter must know the longest backtick run before the content is written.
+     */
+    public boolean needsBacktickScan() {
+        return false;
+    }
+
+    /**
+     * The original {@code ----- path -----} layout.
+     */
+    static class Plain extends SectionFormatter {
+        @Override
+        public Writer beginSection(CombinedWriter out, String path, int longestBacktickRun) throws IOException {
+            out.write("----- " + path + " -----\n");
+            return out;
+        }
+
+        @Override
+        public void endSection(CombinedWriter out, long contentOffset, long contentLength) throws IOException {
+            out.write("\n\n");
+        }
+    }
+
+    /**
+     * One JSON object per file and line. The content is JSON-escaped as it streams through.
+     */
+    static class JsonLines extends SectionFormatter {
+        @Override
+        public Writer beginSection(CombinedWriter out, String path, int longestBacktickRun) throws IOException {
+            out.write("{\"path\":\"");
+            JsonEscapingWriter escaper = new JsonEscapingWriter(out);
+            escaper.write(path);
+            out.write("\",\"content\":\"");
+            return escaper;
+        }
+
+        @Override
+        public void endSection(CombinedWriter out, long contentOffset, long contentLength) throws IOException {
+            out.write("\"}\n");
+        }
+    }
+
+    /**
+     * A heading per file and a fenced code block tagged with the language. The fence is made longer
+     * than any backtick run in the content, so no content line can close it early.
+     */
+    static class Markdown extends SectionFormatter {
+        private static final Map<String, String> LANGUAGES = new HashMap<>();
+
+        static {
+            String[][] languages = {
+                    {".java", "java"}, {".kt", "kotlin"}, {".groovy", "groovy"}, {".gradle", "groovy"},
+                    {".scala", "scala"}, {".js", "javascript"}, {".mjs", "javascript"}, {".ts", "typescript"},
+                    {".tsx", "tsx"}, {".jsx", "jsx"}, {".py", "python"}, {".rb", "ruby"}, {".go", "go"},
+                    {".rs", "rust"}, {".c", "c"}, {".h", "c"}, {".cpp", "cpp"}, {".hpp", "cpp"}, {".cs", "csharp"},
+                    {".php", "php"}, {".swift", "swift"}, {".sh", "bash"}, {".ps1", "powershell"}, {".sql", "sql"},
+                    {".html", "html"}, {".css", "css"}, {".xml", "xml"}, {".json", "json"}, {".yml", "yaml"},
+                    {".yaml", "yaml"}, {".toml", "toml"}, {".properties", "properties"}, {".md", "markdown"},
+                    {".csv", "csv"}, {".txt", "text"}
+            };
+            for (String[] language : languages) {
+                LANGUAGES.put(language[0], language[1]);
+            }
+        }
+
+        private static final String HEADING_SPECIALS = "\\`*_[]<>#&~";
+
+        private String fence;
+
+        @Override
+        public boolean needsBacktickScan() {
+            return true;
+        }
+
+        @Override
+        public Writer beginSection(CombinedWriter out, String path, int longestBacktickRun) throws IOException {
+            fence = "`".repeat(Math.max(3, longestBacktickRun + 1));
+            String fileName = path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+            String language = LANGUAGES.getOrDefault(FileCombiner.getFileExtension(fileName).toLowerCase(Locale.ROOT), "");
+            out.write("### " + escapeHeading(path) + "\n\n" + fence + language + "\n");
+            return out;
+        }
+
+        /**
+         * Escapes a path for a heading: the characters that start emphasis, code, links, HTML, entities or
+         * a closing sequence are backslash-escaped so names like {@code *_draft_*.md} render literally, and
+         * line breaks, which would end the heading, become spaces. Slashes and dots are left readable.
+         */
+        static String escapeHeading(String path) {
+            StringBuilder escaped = new StringBuilder(path.length() + 8);
+            for (int i = 0; i < path.length(); i++) {
+                char c = path.charAt(i);
+                if (c == '\n' || c == '\r') {
+                    escaped.append(' ');
+                } else {
+                    if (HEADING_SPECIALS.indexOf(c) >= 0) {
+                        escaped.append('\\');
+                    }
+                    escaped.append(c);
+                }
+            }
+            return escaped.toString();
+        }
+
+        @Override
+        public void endSection(CombinedWriter out, long contentOffset, long contentLength) throws IOException {
+            out.write(fence + "\n\n");
+        }
+    }
+
+    /**
+     * Netstring-style records. The content length is not known until the content has been streamed,
+     * so a fixed-width placeholder is written first and patched in place afterwards.
+     */
+    static class LengthPrefixed extends SectionFormatter {
+        private static final int LENGTH_DIGITS = 19;
+
+        private long lengthPosition;
+
+        @Override
+        public Writer beginSection(CombinedWriter out, String path, int longestBacktickRun) throws IOException {
+            out.write(out.encodedLength(path) + ":" + path + " ");
+            lengthPosition = out.position();
+            out.write("0".repeat(LENGTH_DIGITS) + "\n");
+            return out;
+        }
+
+        @Override
+        public void endSection(CombinedWriter out, long contentOffset, long contentLength) throws IOException {
+            String length = String.format("%0" + LENGTH_DIGITS + "d", contentLength);
+            // The placeholder was written in the output charset, so the digits are encoded the same way
+            out.patch(lengthPosition, out.toBytes(length));
+            out.write("\n");
+        }
+    }
+
+    /**
+     * Escapes characters for a JSON string as they are written, without intermediate copies.
+     */
+    static class JsonEscapingWriter extends Writer {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        private final Writer out;
+
+        JsonEscapingWriter(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            int end = off + len;
+            int runStart = off;
+            for (int i = off; i < end; i++) {
+                String escape = escape(cbuf[i]);
+                if (escape != null) {
+                    out.write(cbuf, runStart, i - runStart);
+                    out.write(escape);
+                    runStart = i + 1;
+                }
+            }
+            out.write(cbuf, runStart, end - runStart);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            int end = off + len;
+            int runStart = off;
+            for (int i = off; i < end; i++) {
+                String escape = escape(str.charAt(i));
+                if (escape != null) {
+                    out.write(str, runStart, i - runStart);
+                    out.write(escape);
+                    runStart = i + 1;
+                }
+            }
+            out.write(str, runStart, end - runStart);
+        }
+
+        private static String escape(char c) {
+            switch (c) {
+                case '"':
+                    return "\\\"";
+                case '\\':
+                    return "\\\\";
+                case '\n':
+                    return "\\n";
+                case '\r':
+                    return "\\r";
+                case '\t':
+                    return "\\t";
+                case '\b':
+                    return "\\b";
+                case '\f':
+                    return "\\f";
+                case '\u2028':
+                case '\u2029':
+                    // Valid in JSON but not in JavaScript string literals
+                    return unicodeEscape(c);
+                default:
+                    return c < 0x20 ? unicodeEscape(c) : null;
+            }
+        }
+
+        private static String unicodeEscape(char c) {
+            return "\\u" + HEX[(c >> 12) & 0xF] + HEX[(c >> 8) & 0xF] + HEX[(c >> 4) & 0xF] + HEX[c & 0xF];
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The underlying writer stays open for the next section
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.zakariafarih.copyspider;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Table of contents for a combined file: the path, byte offset and byte length of each file's
+ * content section. It is stored as a sidecar next to the output ({@code combined.txt.toc}) so the
+ * combined file itself stays unchanged for existing consumers.
+ *
+ * <p>The sidecar is UTF-8 text with one {@code offset<TAB>length<TAB>path} line per section, after a
+ * {@code #} header. In paths, {@code %}, CR and LF are percent-encoded. Offsets and lengths cover the
+ * content as stored, so for {@link OutputFormat#JSONL} output they point at the escaped JSON string.
+ */
+public class SectionIndex {
+
+    public static final String SUFFIX = ".toc";
+    private static final String HEADER = "# CopySpider section index v1";
+
+    private final String charset;
+    private final OutputFormat format;
+    private final List<Section> sections = new ArrayList<>();
+
+    public SectionIndex(String charset, OutputFormat format) {
+        this.charset = charset;
+        this.format = format;
+    }
+
+    /**
+     * Returns the sidecar index path for a combined output file.
+     */
+    public static Path indexPathFor(Path outputFile) {
+        return outputFile.resolveSibling(outputFile.getFileName().toString() + SUFFIX);
+    }
+
+    public void add(String path, long offset, long length) {
+        sections.add(new Section(path, offset, length));
+    }
+
+    public List<Section> getSections() {
+        return Collections.unmodifiableList(sections);
+    }
+
+    /**
+     * Returns the name of the charset the indexed output was written in.
+     */
+    public String getCharset() {
+        return charset;
+    }
+
+    /**
+     * Returns the format the indexed output was written in.
+     */
+    public OutputFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Writes the index to a sidecar file, replacing it atomically where the file system allows.
+     */
+    public void write(Path indexFile) throws IOException {
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName().toString() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            writer.write(HEADER + "\n");
+            writer.write("# charset=" + charset + "\n");
+            writer.write("# format=" + format.name() + "\n");
+            for (Section section : sections) {
+                writer.write(section.getOffset() + "\t" + section.getLength() + "\t" + encodePath(section.getPath()) + "\n");
+            }
+        }
+        try {
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads an index previously written by {@link #write(Path)}.
+     */
+    public static SectionIndex read(Path indexFile) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Not a CopySpider section index: " + indexFile);
+            }
+
+            String charset = StandardCharsets.UTF_8.name();
+            // Indexes written before output formats existed describe plain text output
+            OutputFormat format = OutputFormat.PLAIN;
+            List<String[]> rows = new ArrayList<>();
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("# charset=")) {
+                    charset = line.substring("# charset=".length());
+                } else if (line.startsWith("# format=")) {
+                    try {
+                        format = OutputFormat.fromName(line.substring("# format=".length()));
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException("Unknown output format in section index: " + line, e);
+                    }
+                } else if (!line.startsWith("#") && !line.isEmpty()) {
+                    String[] fields = line.split("\t", 3);
+                    if (fields.length != 3) {
+                        throw new IOException("Malformed section index line: " + line);
+                    }
+                    rows.add(fields);
+                }
+            }
+
+            SectionIndex index = new SectionIndex(charset, format);
+            try {
+                for (String[] fields : rows) {
+                    index.add(decodePath(fields[2]), Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed section index: " + indexFile, e);
+            }
+            return index;
+        }
+    }
+
+    static String encodePath(String path) {
+        return path.replace("%", "%25").replace("\r", "%0D").replace("\n", "%0A");
+    }
+
+    static String decodePath(String encoded) {
+        return encoded.replace("%0A", "\n").replace("%0D", "\r").replace("%25", "%");
+    }
+
+    /**
+     * One file's content section in the combined output.
+     */
+    public static class Section {
+        private final String path;
+        private final long offset;
+        private final long length;
+
+        public Section(String path, long offset, long length) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package org.zakariafarih.copyspider;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A saved selection: the roots and the settings they are combined with. Profiles are stored as
+ * properties files under {@code ~/.copyspider/profiles}, each next to a scan snapshot of its roots
+ * (see {@link DirectoryCache#save(Path, Collection)}) so reopening a large selection starts warm.
+ */
+public class SelectionProfile {
+
+    private static final String PROFILE_SUFFIX = ".properties";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9 _.-]+");
+
+    private final String name;
+    private List<String> roots = new ArrayList<>();
+    private String extensionFilter = "";
+    private int maxDepth = 5;
+    private String encoding = StandardCharsets.UTF_8.name();
+    private boolean useAbsolutePath = true;
+    private String baseDirectory;
+    private OutputFormat outputFormat = OutputFormat.PLAIN;
+    private boolean writeIndex;
+    private boolean localityOrder;
+    private int maxLineLength;
+
+    public SelectionProfile(String name) {
+        if (!VALID_NAME.matcher(name).matches() || name.startsWith(".")) {
+            throw new IllegalArgumentException("Profile names may only contain letters, digits, spaces, '.', '_' and '-': " + name);
+        }
+        this.name = name;
+    }
+
+    /**
+     * Returns the directory profiles are stored in.
+     */
+    public static Path profilesDirectory() {
+        return Paths.get(System.getProperty("user.home"), ".copyspider", "profiles");
+    }
+
+    /**
+     * Returns the names of the saved profiles, sorted.
+     */
+    public static List<String> listNames() throws IOException {
+        Path directory = profilesDirectory();
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(fileName -> fileName.endsWith(PROFILE_SUFFIX))
+                    .map(fileName -> fileName.substring(0, fileName.length() - PROFILE_SUFFIX.length()))
+                    .sorted(String.CASE_INSENSITIVE_ORDER)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Loads a saved profile.
+     */
+    public static SelectionProfile load(String name) throws IOException {
+        SelectionProfile profile = new SelectionProfile(name);
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(profile.getProfileFile(), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        try {
+            int rootCount = Integer.parseInt(properties.getProperty("roots", "0"));
+            for (int i = 0; i < rootCount; i++) {
+                String root = properties.getProperty("root." + i);
+                if (root == null) {
+                    throw new IOException("Profile " + name + " is missing root." + i);
+                }
+                profile.roots.add(root);
+            }
+            profile.extensionFilter = properties.getProperty("extensions", "");
+            profile.maxDepth = Integer.parseInt(properties.getProperty("depth", "5"));
+            profile.encoding = properties.getProperty("encoding", StandardCharsets.UTF_8.name());
+            profile.useAbsolutePath = !"relative".equals(properties.getProperty("pathMode", "absolute"));
+            profile.baseDirectory = properties.getProperty("baseDirectory");
+            profile.outputFormat = OutputFormat.fromName(properties.getProperty("format", OutputFormat.PLAIN.name()));
+            profile.writeIndex = Boolean.parseBoolean(properties.getProperty("index"));
+            profile.localityOrder = Boolean.parseBoolean(properties.getProperty("locality"));
+            profile.maxLineLength = Integer.parseInt(properties.getProperty("maxLineLength", "0"));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid setting in profile " + name + ": " + e.getMessage(), e);
+        }
+        return profile;
+    }
+
+    /**
+     * Saves the profile, replacing an earlier one with the same name.
+     */
+    public void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("roots", String.valueOf(roots.size()));
+        for (int i = 0; i < roots.size(); i++) {
+            properties.setProperty("root." + i, roots.get(i));
+        }
+        properties.setProperty("extensions", extensionFilter);
+        properties.setProperty("depth", String.valueOf(maxDepth));
+        properties.setProperty("encoding", encoding);
+        properties.setProperty("pathMode", useAbsolutePath ? "absolute" : "relative");
+        if (baseDirectory != null) {
+            properties.setProperty("baseDirectory", baseDirectory);
+        }
+        properties.setProperty("format", outputFormat.name());
+        properties.setProperty("index", String.valueOf(writeIndex));
+        properties.setProperty("locality", String.valueOf(localityOrder));
+        properties.setProperty("maxLineLength", String.valueOf(maxLineLength));
+
+        Files.createDirectories(profilesDirectory());
+        try (Writer writer = Files.newBufferedWriter(getProfileFile(), StandardCharsets.UTF_8)) {
+            properties.store(writer, "CopySpider selection profile");
+        }
+    }
+
+    /**
+     * Saves a scan snapshot of this profile's roots from the directory cache.
+     */
+    public void saveSnapshot(DirectoryCache directoryCache) throws IOException {
+        Files.createDirectories(profilesDirectory());
+        directoryCache.save(getSnapshotFile(), getRootPaths());
+    }
+
+    /**
+     * Loads this profile's scan snapshot into the directory cache, if it has one, and returns the
+     * number of directories loaded.
+     */
+    public int loadSnapshot(DirectoryCache directoryCache) throws IOException {
+        Path snapshotFile = getSnapshotFile();
+        return Files.exists(snapshotFile) ? directoryCache.load(snapshotFile) : 0;
+    }
+
+    public Path getProfileFile() {
+        return profilesDirectory().resolve(name + PROFILE_SUFFIX);
+    }
+
+    public Path getSnapshotFile() {
+        return profilesDirectory().resolve(name + SNAPSHOT_SUFFIX);
+    }
+
+    public List<Path> getRootPaths() {
+        return roots.stream().map(Paths::get).collect(Collectors.toList());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getRoots() {
+        return roots;
+    }
+
+    public void setRoots(List<String> roots) {
+        this.roots = new ArrayList<>(roots);
+    }
+
+    public String getExtensionFilter() {
+        return extensionFilter;
+    }
+
+    public void setExtensionFilter(String extensionFilter) {
+        this.extensionFilter = extensionFilter;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    public boolean isUseAbsolutePath() {
+        return useAbsolutePath;
+    }
+
+    public void setUseAbsolutePath(boolean useAbsolutePath) {
+        this.useAbsolutePath = useAbsolutePath;
+    }
+
+    public String getBaseDirectory() {
+        return baseDirectory;
+    }
+
+    public void setBaseDirectory(String baseDirectory) {
+        this.baseDirectory = baseDirectory;
+    }
+
+    public OutputFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    public void setOutputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    public boolean isWriteIndex() {
+        return writeIndex;
+    }
+
+    public void setWriteIndex(boolean writeIndex) {
+        this.writeIndex = writeIndex;
+    }
+
+    public boolean isLocalityOrder() {
+        return localityOrder;
+    }
+
+    public void setLocalityOrder(boolean localityOrder) {
+        this.localityOrder = localityOrder;
+    }
+
+    public int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    public void setMaxLineLength(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+}
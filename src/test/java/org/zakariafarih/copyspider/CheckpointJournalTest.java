@@ -0,0 +1,87 @@
+package org.zakariafarih.copyspider;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CheckpointJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void fileLinesAfterTheLastCheckpointAreIgnored() throws IOException {
+        Path journalFile = dir.resolve("combined.txt.journal");
+        try (CheckpointJournal journal = new CheckpointJournal(journalFile, "settings", null)) {
+            journal.fileCompleted("a.txt", 10, 5);
+            journal.checkpoint(20);
+            journal.fileCompleted("b.txt", 30, 5);
+            journal.checkpoint(40);
+        }
+        append(journalFile, "F\t50\t5\tc.txt\n");
+
+        CheckpointJournal.State state = CheckpointJournal.read(journalFile);
+        assertEquals("settings", state.getSettings());
+        assertEquals(40, state.getCheckpointOffset());
+        assertEquals(List.of("a.txt", "b.txt"), paths(state));
+    }
+
+    @Test
+    void tornLastLineIsIgnored() throws IOException {
+        Path journalFile = dir.resolve("combined.txt.journal");
+        try (CheckpointJournal journal = new CheckpointJournal(journalFile, "settings", null)) {
+            journal.fileCompleted("a.txt", 10, 5);
+            journal.checkpoint(20);
+            journal.fileCompleted("b.txt", 30, 5);
+        }
+        // A crash while appending the next checkpoint left it without its newline
+        append(journalFile, "F\t30\t5\tb.txt\nC\t4");
+
+        CheckpointJournal.State state = CheckpointJournal.read(journalFile);
+        assertEquals(20, state.getCheckpointOffset());
+        assertEquals(List.of("a.txt"), paths(state));
+    }
+
+    @Test
+    void resumedJournalCarriesOverCompletedSections() throws IOException {
+        Path journalFile = dir.resolve("combined.txt.journal");
+        try (CheckpointJournal journal = new CheckpointJournal(journalFile, "settings", null)) {
+            journal.fileCompleted("a.txt", 10, 5);
+            journal.checkpoint(20);
+            journal.fileCompleted("b.txt", 30, 5);
+        }
+        CheckpointJournal.State resumed = CheckpointJournal.read(journalFile);
+        try (CheckpointJournal journal = new CheckpointJournal(journalFile, "settings", resumed)) {
+            journal.fileCompleted("c.txt", 30, 5);
+            journal.checkpoint(40);
+        }
+
+        CheckpointJournal.State state = CheckpointJournal.read(journalFile);
+        assertEquals(40, state.getCheckpointOffset());
+        assertEquals(List.of("a.txt", "c.txt"), paths(state));
+    }
+
+    @Test
+    void otherFilesAreRejected() throws IOException {
+        Path journalFile = dir.resolve("combined.txt.journal");
+        Files.writeString(journalFile, "not a journal\n");
+        assertThrows(IOException.class, () -> CheckpointJournal.read(journalFile));
+    }
+
+    private static void append(Path file, String text) throws IOException {
+        Files.writeString(file, text, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    private static List<String> paths(CheckpointJournal.State state) {
+        return state.getCompletedSections().stream().map(SectionIndex.Section::getPath).collect(Collectors.toList());
+    }
+}
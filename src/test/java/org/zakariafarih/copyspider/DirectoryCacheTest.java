@@ -0,0 +1,61 @@
+package org.zakariafarih.copyspider;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectoryCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void savedSnapshotLoadsBack() throws IOException {
+        Path root = Files.createDirectories(dir.resolve("root"));
+        Files.writeString(root.resolve("a.txt"), "alpha");
+        DirectoryCache cache = new DirectoryCache();
+        cache.list(root);
+        Path snapshot = dir.resolve("profile.snapshot");
+        cache.save(snapshot, List.of(root));
+
+        assertEquals(1, new DirectoryCache().load(snapshot));
+        try (var files = Files.list(dir)) {
+            assertEquals(2, files.count(), "no temp file is left behind");
+        }
+    }
+
+    @Test
+    void negativeCountIsReportedAsCorrupt() throws IOException {
+        assertCorrupt(-1);
+    }
+
+    @Test
+    void countLargerThanTheFileIsReportedAsCorrupt() throws IOException {
+        assertCorrupt(Integer.MAX_VALUE);
+    }
+
+    private void assertCorrupt(int directories) throws IOException {
+        Path snapshot = dir.resolve("corrupt.snapshot");
+        Path root = Files.createDirectories(dir.resolve("root"));
+        DirectoryCache cache = new DirectoryCache();
+        cache.list(root);
+        cache.save(snapshot, List.of(root));
+        // Keep the valid magic and version, then overwrite the directory count
+        byte[] bytes = Files.readAllBytes(snapshot);
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(snapshot))) {
+            out.write(bytes, 0, 8);
+            out.writeInt(directories);
+            out.write(bytes, 12, bytes.length - 12);
+        }
+
+        IOException e = assertThrows(IOException.class, () -> new DirectoryCache().load(snapshot));
+        assertTrue(e.getMessage().startsWith("Corrupt scan snapshot"), e.getMessage());
+    }
+}
@@ -0,0 +1,111 @@
+package org.zakariafarih.copyspider;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileCombinerTest {
+
+    @TempDir
+    Path dir;
+
+    /**
+     * A file that fails to decode after part of it has been written must leave no partial section,
+     * in any format, with one output or several.
+     */
+    @Test
+    void unreadableFileLeavesNoPartialSection() throws IOException {
+        Files.createDirectories(dir.resolve("one"));
+        Files.createDirectories(dir.resolve("bad"));
+        Files.createDirectories(dir.resolve("two"));
+        Files.writeString(dir.resolve("one/a.txt"), "alpha\nline\n");
+        Files.writeString(dir.resolve("two/c.txt"), "gamma\n");
+        // Far enough in that earlier chunks are already written when decoding fails
+        byte[] bad = new byte[200_000];
+        Arrays.fill(bad, (byte) 'x');
+        bad[150_000] = (byte) 0xE9;
+        Files.write(dir.resolve("bad/b.txt"), bad);
+
+        List<Path> roots = List.of(dir.resolve("one"), dir.resolve("bad"), dir.resolve("two"));
+        List<Path> goodFiles = List.of(dir.resolve("one/a.txt"), dir.resolve("two/c.txt"));
+
+        for (OutputFormat format : OutputFormat.values()) {
+            FileCombiner reference = new FileCombiner();
+            reference.setOutputFormat(format);
+            Path expected = dir.resolve("expected-" + format.name());
+            reference.combine(goodFiles, expected, new RecordingListener());
+
+            FileCombiner single = new FileCombiner();
+            single.setOutputFormat(format);
+            single.setWriteIndex(true);
+            Path output = dir.resolve("single-" + format.name());
+            RecordingListener listener = new RecordingListener();
+            assertEquals(2, single.combine(roots, output, listener));
+            assertEquals(List.of(dir.resolve("bad")), listener.failedRoots, format.toString());
+            assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(output), format.toString());
+
+            List<FileCombiner.OutputSpec> specs = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                FileCombiner.OutputSpec spec = new FileCombiner.OutputSpec(dir.resolve("fan" + i + "-" + format.name()));
+                spec.setActiveExtensions(i == 0 ? Set.of() : Set.of(".txt"));
+                spec.setUseAbsolutePath(true);
+                spec.setCharset(StandardCharsets.UTF_8);
+                spec.setOutputFormat(format);
+                specs.add(spec);
+            }
+            listener = new RecordingListener();
+            assertEquals(List.of(2, 2), new FileCombiner().combine(roots, specs, listener));
+            assertEquals(List.of(dir.resolve("bad")), listener.failedRoots, format.toString());
+            for (FileCombiner.OutputSpec spec : specs) {
+                assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(spec.getOutputFile()), format.toString());
+            }
+        }
+    }
+
+    /**
+     * A root outside one output's base directory must only stop that output, not the shared traversal.
+     */
+    @Test
+    void rootOutsideBaseDirectoryOnlyStopsItsOutput() throws IOException {
+        Files.createDirectories(dir.resolve("inside"));
+        Files.createDirectories(dir.resolve("outside"));
+        Files.writeString(dir.resolve("inside/a.txt"), "alpha\n");
+        Files.writeString(dir.resolve("outside/b.txt"), "beta\n");
+        List<Path> roots = List.of(dir.resolve("inside"), dir.resolve("outside"));
+
+        FileCombiner.OutputSpec relative = new FileCombiner.OutputSpec(dir.resolve("relative.txt"));
+        relative.setActiveExtensions(Set.of());
+        relative.setUseAbsolutePath(false);
+        relative.setBaseDirectory(dir.resolve("inside").toFile());
+        relative.setCharset(StandardCharsets.UTF_8);
+        relative.setOutputFormat(OutputFormat.PLAIN);
+        FileCombiner.OutputSpec absolute = new FileCombiner.OutputSpec(dir.resolve("absolute.txt"));
+        absolute.setActiveExtensions(Set.of());
+        absolute.setUseAbsolutePath(true);
+        absolute.setCharset(StandardCharsets.UTF_8);
+        absolute.setOutputFormat(OutputFormat.PLAIN);
+
+        RecordingListener listener = new RecordingListener();
+        assertEquals(List.of(1, 2), new FileCombiner().combine(roots, List.of(relative, absolute), listener));
+        assertEquals(List.of(dir.resolve("outside")), listener.failedRoots);
+    }
+
+    private static class RecordingListener implements FileCombiner.Listener {
+        private final List<Path> failedRoots = new ArrayList<>();
+
+        @Override
+        public void itemProcessed(int processed, int total) {
+        }
+
+        @Override
+        public void itemFailed(Path root, IOException e) {
+            failedRoots.add(root);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.zakariafarih.copyspider;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LineNormalizerTest {
+
+    private static final String SEPARATOR = System.lineSeparator();
+
+    @Test
+    void crlfSplitAcrossChunksIsOneLineBreak() throws IOException {
+        assertEquals("a" + SEPARATOR + "b" + SEPARATOR, normalize(0, "a\r", "\nb"));
+    }
+
+    @Test
+    void trailingLoneCarriageReturnEndsTheLastLine() throws IOException {
+        assertEquals("a" + SEPARATOR, normalize(0, "a\r"));
+        assertEquals("a" + SEPARATOR + "b" + SEPARATOR, normalize(0, "a\r", "b"));
+        assertEquals("a" + SEPARATOR + SEPARATOR, normalize(0, "a\r", "\r"));
+    }
+
+    @Test
+    void surrogatePairAtTheCutIsNotSplit() throws IOException {
+        String smiley = "\uD83D\uDE00";
+        String expected = "a" + LineNormalizer.truncationMarker(3) + SEPARATOR;
+        // Cut falls between the halves of the pair, within a chunk and across a chunk boundary
+        assertEquals(expected, normalize(2, "a" + smiley + "b\n"));
+        assertEquals(expected, normalize(2, "a\uD83D", "\uDE00b\n"));
+        // Cut falls just after the pair
+        assertEquals("a" + smiley + LineNormalizer.truncationMarker(1) + SEPARATOR, normalize(3, "a" + smiley + "b"));
+    }
+
+    @Test
+    void anyChunkingMatchesReadLine() throws IOException {
+        Random random = new Random(7);
+        String alphabet = "ab\r\n";
+        for (int round = 0; round < 200; round++) {
+            StringBuilder text = new StringBuilder();
+            for (int i = random.nextInt(40); i > 0; i--) {
+                text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+
+            StringBuilder expected = new StringBuilder();
+            try (BufferedReader reader = new BufferedReader(new StringReader(text.toString()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    expected.append(line).append(SEPARATOR);
+                }
+            }
+
+            String[] chunks = new String[random.nextInt(5) + 1];
+            int start = 0;
+            for (int i = 0; i < chunks.length; i++) {
+                int end = i == chunks.length - 1 ? text.length() : start + random.nextInt(text.length() - start + 1);
+                chunks[i] = text.substring(start, end);
+                start = end;
+            }
+            assertEquals(expected.toString(), normalize(0, chunks), text.toString());
+        }
+    }
+
+    private static String normalize(int maxLineLength, String... chunks) throws IOException {
+        LineNormalizer normalizer = new LineNormalizer(maxLineLength);
+        StringWriter out = new StringWriter();
+        normalizer.begin();
+        for (String chunk : chunks) {
+            normalizer.write(chunk.toCharArray(), chunk.length(), out);
+        }
+        normalizer.end(out);
+        return out.toString();
+    }
+}
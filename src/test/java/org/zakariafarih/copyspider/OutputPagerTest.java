@@ -0,0 +1,65 @@
+package org.zakariafarih.copyspider;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutputPagerTest {
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Offsets looked up in any order, including repeatedly inside one long line, give the same line
+     * as counting line breaks from the start.
+     */
+    @Test
+    void lineAtMatchesCountedLineBreaks() throws IOException, InterruptedException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        // Far longer than the distance between checkpoints
+        text.append("x".repeat(300_000)).append('\n');
+        for (int i = 0; i < 2000; i++) {
+            text.append("tail ").append(i).append("\r\n");
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        Path file = dir.resolve("combined.txt");
+        Files.write(file, bytes);
+
+        try (OutputPager pager = new OutputPager(file, StandardCharsets.UTF_8)) {
+            pager.indexLines(lines -> {
+            });
+            pager.awaitIndexed(bytes.length);
+
+            Random random = new Random(42);
+            long longLineStart = pager.lineOffset(2000);
+            for (int i = 0; i < 500; i++) {
+                // Half the lookups land in the long line, moving forwards and backwards
+                int offset = i % 2 == 0
+                        ? (int) longLineStart + random.nextInt(300_000)
+                        : random.nextInt(bytes.length + 1);
+                assertEquals(countLineBreaks(bytes, offset), pager.lineAt(offset), "offset " + offset);
+            }
+            assertEquals("x".repeat(10) + " …", pager.readLine(pager.lineAt(longLineStart + 5), 10));
+        }
+    }
+
+    private static long countLineBreaks(byte[] bytes, int end) {
+        long lines = 0;
+        for (int i = 0; i < end; i++) {
+            if (bytes[i] == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+}
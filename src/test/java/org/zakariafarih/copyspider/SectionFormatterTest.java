@@ -0,0 +1,51 @@
+package org.zakariafarih.copyspider;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SectionFormatterTest {
+
+    @TempDir
+    Path dir;
+
+    /**
+     * The patched length must be encoded like the placeholder it replaces, or multi-byte charsets break.
+     */
+    @Test
+    void lengthPrefixIsPatchedInTheOutputCharset() throws IOException {
+        for (Charset charset : new Charset[]{StandardCharsets.UTF_16, StandardCharsets.UTF_16LE, StandardCharsets.ISO_8859_1}) {
+            Path output = dir.resolve("out-" + charset.name());
+            String content = "café\n";
+            try (CombinedWriter writer = new CombinedWriter(output, charset)) {
+                SectionFormatter formatter = OutputFormat.LENGTH_PREFIXED.newFormatter();
+                for (int i = 0; i < 2; i++) {
+                    Writer sectionWriter = formatter.beginSection(writer, "a.txt", 0);
+                    long contentOffset = writer.position();
+                    sectionWriter.write(content);
+                    formatter.endSection(writer, contentOffset, writer.position() - contentOffset);
+                }
+            }
+
+            String record = byteLength("a.txt", charset) + ":a.txt "
+                    + String.format("%019d", byteLength(content, charset)) + "\n" + content + "\n";
+            assertEquals(record + record, new String(Files.readAllBytes(output), charset), charset.name());
+        }
+    }
+
+    /**
+     * Returns the number of bytes a string takes in a charset, without a byte order mark.
+     */
+    private static int byteLength(String text, Charset charset) {
+        Charset withoutMark = charset.equals(StandardCharsets.UTF_16) ? StandardCharsets.UTF_16BE : charset;
+        return text.getBytes(withoutMark).length;
+    }
+}